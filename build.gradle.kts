@@ -1,10 +1,12 @@
 import java.nio.file.Files
+import java.util.concurrent.TimeUnit
 
 plugins {
     java
     application
     id("net.researchgate.release") version "2.8.1"
     id("org.cadixdev.licenser") version "0.6.1"
+    id("me.champeau.jmh") version "0.6.5"
 }
 
 java.toolchain.languageVersion.set(JavaLanguageVersion.of(16))
@@ -60,6 +62,8 @@ dependencies {
     implementation(libs.velocity)
 
     implementation(libs.guava)
+    implementation(libs.caffeine)
+    implementation(libs.hdrhistogram)
 
     implementation(libs.javafx.base)
     listOf("mac", "win", "linux").forEach {
@@ -73,6 +77,11 @@ dependencies {
     testRuntimeOnly(libs.junit.jupiter.engine)
 }
 
+// ./gradlew jmh, benchmarks live in src/jmh
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+}
+
 application.mainClass.set("net.octyl.ytmp3.YoutubeMp3Server")
 
 tasks.run.configure {
@@ -80,6 +89,201 @@ tasks.run.configure {
     environment("YTMP3_PORT", "9000")
 }
 
+// AppCDS: on its first start, an installed server records every class it loads into
+// lib/ytmp3.jsa (-XX:ArchiveClassesAtExit), and later starts map that archive in.
+// The archive is recorded in place, as it is only valid for the classpath and
+// JVM build it was recorded with; if either changes, -Xshare:auto ignores it.
+val cdsArchiveName = "ytmp3.jsa"
+val cdsDir = project.file("$buildDir/cds")
+val cdsLauncher = javaToolchains.launcherFor {
+    languageVersion.set(java.toolchain.languageVersion)
+}
+
+// A separate copy of the installation, so its archive doesn't follow anyone's build/install
+val cdsInstall by tasks.registering(Sync::class) {
+    from(tasks.installDist)
+    into(cdsDir.resolve("install"))
+}
+val cdsArchive = cdsDir.resolve("install/lib/$cdsArchiveName")
+
+fun freePort(): Int = java.net.ServerSocket(0).use { it.localPort }
+
+// Runs the installed start script, as a user would
+fun startServer(workDir: File, port: Int, javaOpts: List<String>): Process {
+    project.delete(workDir)
+    workDir.mkdirs()
+    val script = cdsDir.resolve("install/bin/${application.applicationName}")
+    val builder = ProcessBuilder(script.absolutePath)
+        .directory(workDir)
+        .redirectErrorStream(true)
+        .redirectOutput(workDir.resolve("server.log"))
+    builder.environment().apply {
+        put("JAVA_HOME", cdsLauncher.get().metadata.installationPath.asFile.absolutePath)
+        put("JAVA_OPTS", javaOpts.joinToString(" "))
+        put("YTMP3_HOST", "127.0.0.1")
+        put("YTMP3_PORT", port.toString())
+        put("YTMP3_SHUTDOWN_DEADLINE_SECONDS", "5")
+        put("PATH", project.file("src/cds/bin").absolutePath + File.pathSeparator + System.getenv("PATH"))
+    }
+    return builder.start()
+}
+
+fun request(port: Int, method: String, path: String, body: String? = null, headers: Map<String, String> = mapOf()): Pair<Int, String> {
+    val connection = java.net.URL("http://127.0.0.1:$port$path").openConnection() as java.net.HttpURLConnection
+    connection.requestMethod = method
+    connection.connectTimeout = 1000
+    connection.readTimeout = 2000
+    headers.forEach { (k, v) -> connection.setRequestProperty(k, v) }
+    if (body != null) {
+        connection.doOutput = true
+        connection.setRequestProperty("Content-Type", "application/json")
+        connection.outputStream.use { it.write(body.toByteArray()) }
+    }
+    return try {
+        val stream = if (connection.responseCode < 400) connection.inputStream else connection.errorStream
+        // SSE streams never end, so whatever arrives before the timeout is enough
+        val text = try {
+            stream?.bufferedReader()?.use { it.readText() } ?: ""
+        } catch (e: java.net.SocketTimeoutException) {
+            ""
+        }
+        connection.responseCode to text
+    } finally {
+        connection.disconnect()
+    }
+}
+
+// Time from launch until the conversion data can be served
+fun awaitReady(server: Process, port: Int): Long {
+    val start = System.nanoTime()
+    while (true) {
+        check(server.isAlive) { "Server exited during startup" }
+        try {
+            if (request(port, "GET", "/mp3ify").first == 200) {
+                return (System.nanoTime() - start) / 1_000_000
+            }
+        } catch (e: java.io.IOException) {
+            // not listening yet
+        }
+        check(System.nanoTime() - start < 60_000_000_000L) { "Server didn't become ready in a minute" }
+        Thread.sleep(10)
+    }
+}
+
+fun stopServer(server: Process) {
+    // SIGTERM, so the shutdown coordinator runs and the archive is written at exit
+    server.destroy()
+    check(server.waitFor(60, TimeUnit.SECONDS)) { "Server didn't stop" }
+}
+
+val trainCdsArchive by tasks.registering {
+    group = "verification"
+    description = "Starts a fresh installation for the first time against a fake youtube-dl, exercises each route " +
+            "and checks that the start script recorded an AppCDS archive."
+    dependsOn(cdsInstall)
+    inputs.dir("src/cds/bin")
+    outputs.file(cdsArchive)
+
+    doLast {
+        project.delete(cdsArchive)
+        val port = freePort()
+        val server = startServer(cdsDir.resolve("training"), port, listOf())
+        try {
+            awaitReady(server, port)
+            request(port, "GET", "/")
+            request(port, "GET", "/assets/javascript/conversion.js")
+            val (created, quotedId) = request(port, "POST", "/mp3ify", """{"video": "https://www.youtube.com/watch?v=cdstraining1"}""")
+            check(created == 201) { "Unable to start a conversion: $created $quotedId" }
+            val id = quotedId.trim().removeSurrounding("\"")
+            request(port, "GET", "/mp3ify/$id/stream")
+            request(port, "GET", "/mp3ify/streams?watch=$id")
+            val deadline = System.nanoTime() + 30_000_000_000L
+            while (!request(port, "GET", "/mp3ify/$id/status").second.contains("SUCCESSFUL")) {
+                check(System.nanoTime() < deadline) { "Training conversion didn't finish" }
+                Thread.sleep(100)
+            }
+            request(port, "GET", "/mp3ify/$id/fileName")
+            request(port, "GET", "/mp3ify/$id/rawOutput")
+            request(port, "GET", "/mp3ify/$id/download")
+            request(port, "GET", "/mp3ify/$id/download", headers = mapOf("Range" to "bytes=0-1023"))
+            request(port, "HEAD", "/mp3ify/$id/download")
+            request(port, "GET", "/mp3ify")
+            request(port, "GET", "/mp3ify/changes")
+            request(port, "GET", "/stats/cache")
+            request(port, "GET", "/stats/reconcile")
+            request(port, "DELETE", "/mp3ify/$id")
+        } finally {
+            stopServer(server)
+        }
+        check(cdsArchive.exists()) { "The JVM didn't write $cdsArchive, see ${cdsDir.resolve("training/server.log")}" }
+    }
+}
+
+val compareCdsStartup by tasks.registering {
+    group = "verification"
+    description = "Reports how long an installed server takes to become ready with and without its AppCDS archive."
+    dependsOn(trainCdsArchive)
+    val report = cdsDir.resolve("startup-comparison.txt")
+    outputs.file(report)
+    outputs.upToDateWhen { false }
+
+    doLast {
+        fun medianStartup(javaOpts: List<String>): Long {
+            val times = (1..3).map {
+                val port = freePort()
+                val server = startServer(cdsDir.resolve("comparison"), port, javaOpts)
+                try {
+                    awaitReady(server, port)
+                } finally {
+                    stopServer(server)
+                }
+            }
+            return times.sorted()[times.size / 2]
+        }
+        // the JDK's own archive, which is what is used without ours
+        val baseArchive = cdsLauncher.get().metadata.installationPath.file("lib/server/classes.jsa").asFile
+        val withoutCds = medianStartup(listOf("-XX:SharedArchiveFile=$baseArchive"))
+        // -Xshare:on fails to start rather than silently ignoring an archive that doesn't match
+        val withCds = medianStartup(listOf("-Xshare:on"))
+        val summary = "Startup until ready (median of 3): ${withoutCds}ms without CDS, ${withCds}ms with CDS " +
+                "(${(withoutCds - withCds) * 100 / withoutCds.coerceAtLeast(1)}% faster)"
+        report.writeText(summary + "\n")
+        logger.lifecycle(summary)
+    }
+}
+trainCdsArchive.configure { finalizedBy(compareCdsStartup) }
+
+tasks.startScripts {
+    defaultJvmOpts = listOf("__CDS_OPTS__", "-Xshare:auto")
+    doLast {
+        // the scripts don't know where they're installed, or whether the archive exists yet, until they run
+        val unixCds = """
+            |CDS_ARCHIVE="${'$'}APP_HOME/lib/$cdsArchiveName"
+            |if [ -f "${'$'}CDS_ARCHIVE" ]; then
+            |    CDS_OPTS="-XX:SharedArchiveFile=${'$'}CDS_ARCHIVE"
+            |else
+            |    CDS_OPTS="-XX:ArchiveClassesAtExit=${'$'}CDS_ARCHIVE"
+            |fi
+            |""".trimMargin()
+        val windowsCds = """
+            |set "CDS_ARCHIVE=%APP_HOME%\lib\$cdsArchiveName"
+            |set "CDS_OPTS=-XX:ArchiveClassesAtExit=%CDS_ARCHIVE%"
+            |if exist "%CDS_ARCHIVE%" set "CDS_OPTS=-XX:SharedArchiveFile=%CDS_ARCHIVE%"
+            |""".trimMargin()
+        unixScript.writeText(insertBefore(unixScript.readText(), "DEFAULT_JVM_OPTS=", unixCds)
+            .replace("__CDS_OPTS__", "'\"\$CDS_OPTS\"'"))
+        windowsScript.writeText(insertBefore(windowsScript.readText(), "set DEFAULT_JVM_OPTS=", windowsCds)
+            .replace("__CDS_OPTS__", "%CDS_OPTS%"))
+    }
+}
+
+fun insertBefore(script: String, linePrefix: String, text: String): String {
+    val lines = script.lines()
+    val index = lines.indexOfFirst { it.startsWith(linePrefix) }
+    check(index != -1) { "No line starting with $linePrefix in the start script" }
+    return (lines.subList(0, index) + text.lines() + lines.subList(index, lines.size)).joinToString("\n")
+}
+
 // Super exciting! We"re doing ES6 transpilation!
 val destDirBase = project.file("$buildDir/transpiled")
 val transpileJavascript by tasks.registering {
@@ -0,0 +1,120 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package conversions.videoid;
+
+import com.google.common.collect.ImmutableList;
+import net.octyl.ytmp3.conversion.videoid.VideoHandler;
+import net.octyl.ytmp3.conversion.videoid.VideoHandlerIndex;
+import net.octyl.ytmp3.conversion.videoid.VideoId;
+import net.octyl.ytmp3.conversion.videoid.YoutubeVideoHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares asking every handler in turn, as lookups used to, with the host
+ * index, as the number of handlers grows. The YouTube handler is registered
+ * last, which is the worst case for the linear scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoHandlerIndexBenchmark {
+
+    private static final String VIDEO = "https://www.youtube.com/watch?v=dQw4w9WgXcQ&feature=share";
+
+    private static final class SiteHandler implements VideoHandler {
+        private final String host;
+
+        private SiteHandler(int site) {
+            this.host = "site" + site + ".example";
+        }
+
+        @Override
+        public Set<String> getHosts() {
+            return Set.of(host);
+        }
+
+        @Override
+        public Optional<VideoId> findId(URI video) {
+            if (!video.getHost().equals(host)) {
+                return Optional.empty();
+            }
+            return Optional.of(new VideoId(host, video.getRawPath()));
+        }
+    }
+
+    @Param({"1", "10", "100", "1000"})
+    public int handlerCount;
+
+    private List<VideoHandler> handlers;
+    private VideoHandlerIndex index;
+
+    @Setup
+    public void setup() {
+        ImmutableList.Builder<VideoHandler> builder = ImmutableList.builder();
+        for (int i = 0; i < handlerCount; i++) {
+            builder.add(new SiteHandler(i));
+        }
+        handlers = builder.add(new YoutubeVideoHandler()).build();
+        index = new VideoHandlerIndex(handlers);
+    }
+
+    @Benchmark
+    public Optional<VideoId> linearScan() {
+        // each handler parses the URL again
+        for (VideoHandler handler : handlers) {
+            Optional<VideoId> id = handler.findId(VIDEO);
+            if (id.isPresent()) {
+                return id;
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Benchmark
+    public Optional<VideoId> hostIndex() {
+        return index.findId(VIDEO);
+    }
+
+}
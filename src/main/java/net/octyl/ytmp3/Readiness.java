@@ -0,0 +1,109 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3;
+
+import com.google.common.collect.ImmutableMap;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import net.octyl.ytmp3.conversion.Conversion;
+import net.octyl.ytmp3.conversion.ConversionManager;
+import net.octyl.ytmp3.util.Config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Decides whether this node should receive traffic. It isn't ready while
+ * starting up or shutting down, when too many conversions are running, when
+ * the result store is nearly out of space, or when youtube-dl has gone away.
+ */
+public class Readiness {
+
+    private static final PropOrEnvConfigOption<Integer> MAX_ACTIVE =
+        Config.NAMESPACE.create("ready_max_active_conversions", Loaders.forIntInRange(1, Integer.MAX_VALUE), 50);
+    private static final PropOrEnvConfigOption<Integer> MIN_FREE_MB =
+        Config.NAMESPACE.create("ready_min_free_disk_mb", Loaders.forIntInRange(0, Integer.MAX_VALUE), 1024);
+
+    public static final class Result {
+        private final boolean ready;
+        private final Map<String, Object> checks;
+
+        private Result(boolean ready, Map<String, Object> checks) {
+            this.ready = ready;
+            this.checks = checks;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        public Map<String, Object> toMap() {
+            return ImmutableMap.of("ready", ready, "checks", checks);
+        }
+    }
+
+    public static Result check() {
+        ImmutableMap.Builder<String, Object> checks = ImmutableMap.builder();
+        boolean started = Startup.isReady();
+        checks.put("started", started);
+        if (!started) {
+            // the rest would wait for the stores to load
+            return new Result(false, checks.build());
+        }
+        boolean ready = true;
+
+        boolean accepting = ConversionManager.isAccepting();
+        checks.put("accepting", accepting);
+        ready &= accepting;
+
+        long active = ConversionManager.getActiveCount();
+        int maxActive = MAX_ACTIVE.get();
+        checks.put("activeConversions", ImmutableMap.of("value", active, "max", maxActive));
+        ready &= active <= maxActive;
+
+        long freeMb = freeDiskMb();
+        int minFreeMb = MIN_FREE_MB.get();
+        checks.put("freeDiskMb", ImmutableMap.of("value", freeMb, "min", minFreeMb));
+        ready &= freeMb >= minFreeMb;
+
+        boolean youtubeDl = Conversion.isYoutubeDlAvailable();
+        checks.put("youtubeDl", youtubeDl);
+        ready &= youtubeDl;
+
+        return new Result(ready, checks.build());
+    }
+
+    private static long freeDiskMb() {
+        try {
+            return Files.getFileStore(Conversion.getResultRoot()).getUsableSpace() / (1024 * 1024);
+        } catch (IOException e) {
+            // can't write results if we can't even look at the disk
+            return -1;
+        }
+    }
+
+}
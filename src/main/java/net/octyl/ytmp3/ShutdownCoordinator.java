@@ -0,0 +1,129 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3;
+
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import net.octyl.ytmp3.controllers.EventListStreamer;
+import net.octyl.ytmp3.conversion.Conversion;
+import net.octyl.ytmp3.conversion.ConversionManager;
+import net.octyl.ytmp3.conversion.ExtractorIdResolver;
+import net.octyl.ytmp3.conversion.FileHash;
+import net.octyl.ytmp3.util.Config;
+import org.apache.logging.log4j.LogManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shuts the server down in order when the JVM is asked to exit, e.g. by
+ * SIGTERM.
+ *
+ * <ol>
+ *     <li>New conversions are rejected, and running ones get until the
+ *     deadline to finish. Any still running are killed but left
+ *     {@code CONVERTING}, so they resume on the next start.</li>
+ *     <li>SSE streams are flushed and ended with a {@code shutdown} event.</li>
+ *     <li>The conversion maps are written out and the databases committed
+ *     and closed. Databases conversions write to are left open if a killed
+ *     conversion still hasn't stopped.</li>
+ * </ol>
+ *
+ * <p>
+ * None of this runs if startup didn't finish, e.g. when a failed startup
+ * phase exits, as the stores may never have been opened. Logging is shut down
+ * last, so it has its own hook disabled in {@code log4j2.xml}.
+ * </p>
+ */
+public class ShutdownCoordinator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShutdownCoordinator.class);
+
+    private static final PropOrEnvConfigOption<Integer> DEADLINE_SECONDS =
+        Config.NAMESPACE.create("shutdown_deadline_seconds", Loaders.forIntInRange(0, 3600), 30);
+    private static final Duration STREAM_FLUSH_TIMEOUT = Duration.ofSeconds(2);
+
+    public static void install() {
+        Runtime.getRuntime().addShutdownHook(new Thread(ShutdownCoordinator::shutdown, "shutdown-coordinator"));
+    }
+
+    private static void shutdown() {
+        if (!Startup.isReady()) {
+            LOGGER.warn("Exiting before startup finished, there is nothing safe to flush or close");
+            LogManager.shutdown();
+            return;
+        }
+        long start = System.nanoTime();
+        Duration deadline = Duration.ofSeconds(DEADLINE_SECONDS.get());
+        LOGGER.info("Shutting down, giving running conversions up to {}s", deadline.toSeconds());
+
+        AtomicReference<ConversionManager.DrainResult> drained =
+            new AtomicReference<>(ConversionManager.DrainResult.STILL_RUNNING);
+        phase("drain conversions", () -> drained.set(ConversionManager.drain(deadline)));
+        switch (drained.get()) {
+            case CHECKPOINTED:
+                LOGGER.warn("Some conversions didn't finish in time, they will resume on the next start");
+                break;
+            case STILL_RUNNING:
+                LOGGER.error("Some conversions didn't stop when killed, leaving the stores they write to open");
+                break;
+            default:
+                break;
+        }
+        phase("close streams", () -> EventListStreamer.closeAll(STREAM_FLUSH_TIMEOUT));
+        phase("flush conversion maps", ConversionManager::flush);
+        if (drained.get() != ConversionManager.DrainResult.STILL_RUNNING) {
+            // closing a store under a writer would lose or corrupt what it writes
+            phase("close video ID records", Conversion::closeRecords);
+            phase("close hash cache", FileHash::close);
+        }
+        phase("close extractor ID cache", ExtractorIdResolver::close);
+
+        LOGGER.info("Shut down in {}ms", Duration.ofNanos(System.nanoTime() - start).toMillis());
+        LogManager.shutdown();
+    }
+
+    private interface Phase {
+
+        void run() throws Exception;
+
+    }
+
+    private static void phase(String name, Phase phase) {
+        try {
+            phase.run();
+        } catch (Throwable t) {
+            // keep going, the later phases protect data too, even after an Error
+            LOGGER.error("Shutdown phase '" + name + "' failed", t);
+        }
+    }
+
+    private ShutdownCoordinator() {
+    }
+
+}
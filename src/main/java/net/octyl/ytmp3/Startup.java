@@ -0,0 +1,127 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.octyl.ytmp3.controllers.EventListStreamer;
+import net.octyl.ytmp3.conversion.Conversion;
+import net.octyl.ytmp3.conversion.ConversionManager;
+import net.octyl.ytmp3.conversion.ExtractorIdResolver;
+import net.octyl.ytmp3.conversion.FileHash;
+import net.octyl.ytmp3.conversion.Reconciler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the expensive subsystems in parallel, in the background, so the HTTP
+ * listener can accept connections straight away.
+ *
+ * <p>
+ * Requests that need conversion data wait for {@link #whenReady()}, see
+ * {@link net.octyl.ytmp3.http.ReadinessGate}. Everything else is served
+ * immediately.
+ * </p>
+ */
+public class Startup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Startup.class);
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("startup-%d").setDaemon(true).build());
+    private static final CompletableFuture<Void> READY = new CompletableFuture<>();
+    private static final Stopwatch SINCE_BEGIN = Stopwatch.createUnstarted();
+
+    public static void begin() {
+        SINCE_BEGIN.start();
+        try {
+            // shared by the stores below, which now open concurrently
+            Files.createDirectories(Paths.get("dbs"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // class initialization is what does the work in each of these
+        List<CompletableFuture<Void>> dataPhases = ImmutableList.of(
+            phase("video ID records and result store", Conversion.class),
+            phase("conversion maps", ConversionManager.class),
+            phase("file hash cache", FileHash.class),
+            phase("extractor ID cache", ExtractorIdResolver.class),
+            // nothing to load, but it checks the SSE settings before anyone subscribes
+            phase("event stream settings", EventListStreamer.class)
+        );
+        // not needed for readiness, only the index page uses it
+        phase("templates", VelocityTemplateRenderer.class);
+
+        CompletableFuture.allOf(dataPhases.toArray(CompletableFuture[]::new))
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    LOGGER.error("Startup failed", error);
+                    READY.completeExceptionally(error);
+                    System.exit(1);
+                    return;
+                }
+                LOGGER.info("Ready in {}ms", SINCE_BEGIN.elapsed(TimeUnit.MILLISECONDS));
+                READY.complete(null);
+                Reconciler.start();
+            });
+    }
+
+    private static CompletableFuture<Void> phase(String name, Class<?> subsystem) {
+        return CompletableFuture.runAsync(() -> {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            try {
+                Class.forName(subsystem.getName(), true, subsystem.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+            LOGGER.info("Startup phase '{}' took {}ms", name, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }, POOL);
+    }
+
+    public static boolean isReady() {
+        return READY.isDone() && !READY.isCompletedExceptionally();
+    }
+
+    public static CompletionStage<Void> whenReady() {
+        return READY;
+    }
+
+    private Startup() {
+    }
+
+}
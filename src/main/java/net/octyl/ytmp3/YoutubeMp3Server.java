@@ -28,33 +28,37 @@ package net.octyl.ytmp3;
 import com.google.common.collect.ImmutableList;
 import com.techshroom.jungle.Loaders;
 import com.techshroom.jungle.PropOrEnvConfigOption;
-import com.techshroom.jungle.PropOrEnvNamespace;
 import com.techshroom.lettar.Router;
 import com.techshroom.lettar.pipe.PipelineRouterInitializer;
-import com.techshroom.templar.HttpInitializer;
-import com.techshroom.templar.HttpRouterHandler;
 import com.techshroom.templar.HttpServerBootstrap;
 import net.octyl.ytmp3.controllers.RouteContainer;
+import net.octyl.ytmp3.http.RouteTemplates;
+import net.octyl.ytmp3.http.ServerInitializer;
+import net.octyl.ytmp3.util.Config;
 import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class YoutubeMp3Server {
 
-    private static final PropOrEnvNamespace CONFIG = PropOrEnvNamespace.create("ytmp3");
     private static final PropOrEnvConfigOption<String> HOST =
-        CONFIG.create("host", Loaders.forString(), "0.0.0.0");
+        Config.NAMESPACE.create("host", Loaders.forString(), "0.0.0.0");
     private static final PropOrEnvConfigOption<Integer> PORT =
-        CONFIG.create("port", Loaders.forIntInRange(0, 65565), 80);
+        Config.NAMESPACE.create("port", Loaders.forIntInRange(0, 65565), 80);
     private static final Logger LOGGER = LoggerFactory.getLogger(YoutubeMp3Server.class);
 
     public static void main(String[] args) {
         Router<ByteBuf, Object> router = new PipelineRouterInitializer()
             .newRouter(ImmutableList.of(new RouteContainer()));
 
+        RouteTemplates routes = RouteTemplates.scan(RouteContainer.class);
+
         HttpServerBootstrap bootstrap = new HttpServerBootstrap(
-            HOST.get(), PORT.get(), () -> new HttpInitializer(new HttpRouterHandler(router))
+            HOST.get(), PORT.get(), () -> new ServerInitializer(router, routes)
         );
+        ShutdownCoordinator.install();
+        // the listener comes up while this is still running
+        Startup.begin();
         LOGGER.info("Starting YoutubeMp3Server on {}:{}", HOST.get(), PORT.get());
         bootstrap.start();
     }
@@ -25,7 +25,10 @@
 
 package net.octyl.ytmp3.controllers;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
 import com.techshroom.lettar.Response;
 import com.techshroom.lettar.SimpleResponse;
 import com.techshroom.lettar.addons.sse.BaseSseEmitter;
@@ -33,72 +36,420 @@ import com.techshroom.lettar.addons.sse.ServerSentEvent;
 import com.techshroom.lettar.addons.sse.SseEmitter;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.util.Config;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
 
+/**
+ * Streams one or more event lists to a single SSE client.
+ *
+ * <p>
+ * Events are never emitted on the thread that appended them. Each subscriber
+ * has a bounded outbound queue which is drained by the {@code sse-writer}
+ * pool, so a slow client can only ever stall its own writer. When the queue
+ * is full, the {@link SlowConsumerPolicy} decides what happens.
+ * </p>
+ */
 public class EventListStreamer {
 
-    public static CompletionStage<? extends Response<? extends Object>> subscribe(ObservableList<ServerSentEvent> events, int skip) {
-        EventListStreamer streamer = new EventListStreamer(events, skip);
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventListStreamer.class);
+
+    public enum SlowConsumerPolicy {
+        /**
+         * Drop the oldest queued progress frame ({@code outputLine} or
+         * {@code carriageReturn}) to make room. Status events are never dropped.
+         */
+        DROP_PROGRESS,
+        /**
+         * Close the stream. The client reconnects with {@code Last-Event-ID}
+         * and replays whatever it missed.
+         */
+        DISCONNECT,
+    }
+
+    private static final PropOrEnvConfigOption<Integer> QUEUE_SIZE =
+        Config.NAMESPACE.create("sse_queue_size", Loaders.forIntInRange(1, 65536), 256);
+    private static final PropOrEnvConfigOption<String> POLICY =
+        Config.NAMESPACE.create("sse_slow_consumer_policy", Loaders.forString(), SlowConsumerPolicy.DROP_PROGRESS.name());
+    // parsed once, so a bad value fails startup rather than every subscription
+    private static final SlowConsumerPolicy SLOW_CONSUMER_POLICY = parsePolicy(POLICY.get());
+
+    private static SlowConsumerPolicy parsePolicy(String policy) {
+        try {
+            return SlowConsumerPolicy.valueOf(policy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Unknown sse_slow_consumer_policy '" + policy + "', expected one of "
+                + Arrays.toString(SlowConsumerPolicy.values()), e);
+        }
+    }
+
+    private static final Set<String> PROGRESS_EVENTS = ImmutableSet.of("outputLine", "carriageReturn");
+
+    public static CompletionStage<? extends Response<? extends Object>> subscribe(String source,
+                                                                                ObservableList<ServerSentEvent> events,
+                                                                                int skip) {
+        EventListStreamer streamer = open();
+        streamer.attach(source, events, skip, UnaryOperator.identity());
+        return streamer.getResponseStage();
+    }
+
+    static EventListStreamer open() {
+        EventListStreamer streamer = new EventListStreamer();
+        OPEN_STREAMERS.add(streamer);
         streamer.start();
-        return streamer.emitter.getResponseStage();
+        CONNECTIONS.increment();
+        return streamer;
+    }
+
+    /**
+     * Ends every open stream with a {@code shutdown} event, after flushing
+     * what is already queued, and waits up to {@code timeout} for the writes.
+     * Streams opened afterwards are ended straight away.
+     */
+    public static void closeAll(Duration timeout) throws InterruptedException {
+        shuttingDown = true;
+        for (EventListStreamer streamer : OPEN_STREAMERS) {
+            streamer.shutdown();
+        }
+        KEEP_ALIVE.shutdownNow();
+        WRITER.shutdown();
+        WRITER.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
     }
 
     private static final ScheduledExecutorService KEEP_ALIVE = Executors.newScheduledThreadPool(2,
         new ThreadFactoryBuilder().setNameFormat("keep-alive-%d").setDaemon(true).build());
+    private static final ExecutorService WRITER = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("sse-writer-%d").setDaemon(true).build());
     private static final ServerSentEvent KEEP_ALIVE_EVENT = ServerSentEvent.builder().comment("keep-alive").build();
+    private static final ServerSentEvent SHUTDOWN_EVENT = ServerSentEvent.builder().name("shutdown").data("").build();
+    private static final Set<EventListStreamer> OPEN_STREAMERS = ConcurrentHashMap.newKeySet();
+    private static volatile boolean shuttingDown;
+    private static final Counter CONNECTIONS = Metrics.counter("ytmp3_sse_connections_total",
+        "Event streams opened");
+    private static final Counter EVENTS_SENT = Metrics.counter("ytmp3_sse_events_total",
+        "Events written to event streams");
+    private static final Counter EVENTS_DROPPED = Metrics.counter("ytmp3_sse_dropped_events_total",
+        "Progress events dropped to make room for a slow consumer");
+    private static final Counter SLOW_DISCONNECTS = Metrics.counter("ytmp3_sse_slow_disconnects_total",
+        "Event streams closed because the consumer fell too far behind");
+
+    static {
+        Metrics.gauge("ytmp3_sse_streams_open", "Event streams currently open", OPEN_STREAMERS::size);
+    }
 
     private final SseEmitter emitter = new BaseSseEmitter(SimpleResponse::builder);
-    private final Set<String> sentEvents = new HashSet<>();
-    private final Lock lock = new ReentrantLock();
-    private final ObservableList<ServerSentEvent> events;
-    private final int skip;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int queueSize = QUEUE_SIZE.get();
+    // all guarded by lock
+    private final Deque<ServerSentEvent> queue = new ArrayDeque<>();
+    private boolean draining;
+    private boolean closed;
+    private boolean abandoned;
+    private int droppedEvents;
+    private final List<Runnable> closeActions = new ArrayList<>();
+    @Nullable
+    private ScheduledFuture<?> keepAlive;
 
-    private EventListStreamer(ObservableList<ServerSentEvent> events, int skip) {
-        this.events = events;
-        this.skip = skip;
+    private EventListStreamer() {
     }
 
     private void start() {
-        KEEP_ALIVE.scheduleWithFixedDelay(this::postKeepAlive, 5, 5, TimeUnit.SECONDS);
+        lock.lock();
+        try {
+            if (shuttingDown) {
+                abandon();
+                return;
+            }
+            keepAlive = KEEP_ALIVE.scheduleWithFixedDelay(this::postKeepAlive, 5, 5, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // closeAll got there first
+            abandon();
+        } finally {
+            unlock();
+        }
+    }
+
+    CompletionStage<? extends Response<? extends Object>> getResponseStage() {
+        return emitter.getResponseStage();
+    }
 
+    /**
+     * Streams {@code events} to this client, starting at {@code skip}. Each
+     * event is passed through {@code mapper} before being queued.
+     *
+     * @param source what the events are from, for diagnostics
+     * @return an action that stops streaming {@code events}
+     */
+    Runnable attach(String source, ObservableList<ServerSentEvent> events, int skip, UnaryOperator<ServerSentEvent> mapper) {
         lock.lock();
         try {
-            events.addListener((ListChangeListener.Change<? extends ServerSentEvent> change) -> {
+            if (closed) {
+                return () -> {
+                };
+            }
+            // per attachment, so a list attached again is replayed
+            Set<String> sentEvents = new HashSet<>();
+            ListChangeListener<ServerSentEvent> listener = change -> {
+                SseFanOutEvent event = new SseFanOutEvent();
+                event.begin();
+                int added = 0;
+                int droppedBefore;
                 lock.lock();
                 try {
+                    droppedBefore = droppedEvents;
                     while (change.next()) {
-                        change.getAddedSubList().forEach(this::sendEvent);
+                        added += change.getAddedSize();
+                        change.getAddedSubList().forEach(e -> sendEvent(sentEvents, mapper.apply(e)));
+                    }
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.source = source;
+                        event.events = added;
+                        event.queued = queue.size();
+                        event.dropped = droppedEvents - droppedBefore;
+                        event.closed = closed;
                     }
                 } finally {
-                    lock.unlock();
+                    unlock();
                 }
-            });
+                event.commit();
+            };
+            events.addListener(listener);
+            Runnable removeListener = () -> events.removeListener(listener);
+            closeActions.add(removeListener);
             events.stream()
                 .skip(skip)
-                .forEach(this::sendEvent);
+                .map(mapper)
+                .forEach(e -> sendEvent(sentEvents, e));
+            return () -> {
+                lock.lock();
+                try {
+                    if (closeActions.remove(removeListener)) {
+                        removeListener.run();
+                    }
+                } finally {
+                    unlock();
+                }
+            };
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Queues a single event that isn't part of any attached list.
+     */
+    void send(ServerSentEvent event) {
+        lock.lock();
+        try {
+            enqueue(event);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
-    private void sendEvent(ServerSentEvent event) {
+    void onClose(Runnable action) {
+        lock.lock();
+        try {
+            if (closed) {
+                action.run();
+                return;
+            }
+            closeActions.add(action);
+        } finally {
+            unlock();
+        }
+    }
+
+    // must hold lock
+    private void sendEvent(Set<String> sentEvents, ServerSentEvent event) {
         if (event.getId().isPresent() && sentEvents.contains(event.getId().get())) {
             return;
         }
-        emitter.emit(event);
+        enqueue(event);
         event.getId().ifPresent(sentEvents::add);
     }
 
+    // must hold lock
+    private void enqueue(ServerSentEvent event) {
+        if (closed) {
+            return;
+        }
+        if (queue.size() >= queueSize && !makeRoom()) {
+            LOGGER.debug("Disconnecting slow SSE consumer, {} events queued", queue.size());
+            SLOW_DISCONNECTS.increment();
+            close();
+            return;
+        }
+        queue.addLast(event);
+        scheduleDrain();
+    }
+
+    // must hold lock
+    private boolean makeRoom() {
+        if (SLOW_CONSUMER_POLICY != SlowConsumerPolicy.DROP_PROGRESS) {
+            return false;
+        }
+        for (Iterator<ServerSentEvent> iter = queue.iterator(); iter.hasNext(); ) {
+            ServerSentEvent queued = iter.next();
+            if (queued == KEEP_ALIVE_EVENT || queued.getName().filter(PROGRESS_EVENTS::contains).isPresent()) {
+                iter.remove();
+                droppedEvents++;
+                EVENTS_DROPPED.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // must hold lock
+    private void scheduleDrain() {
+        if (!draining) {
+            draining = true;
+            try {
+                WRITER.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // shut down, so there's nobody left to write this
+                draining = false;
+                abandon();
+            }
+        }
+    }
+
+    // must hold lock, the emitter is closed by unlock()
+    private void abandon() {
+        closed = true;
+        abandoned = true;
+        queue.clear();
+        detach();
+    }
+
+    /**
+     * Releases the lock, then ends the stream if it was abandoned while the
+     * lock was held, so closing never does network I/O under the lock.
+     */
+    private void unlock() {
+        boolean endStream = abandoned && lock.getHoldCount() == 1;
+        if (endStream) {
+            abandoned = false;
+        }
+        lock.unlock();
+        if (endStream) {
+            try {
+                emitter.close();
+            } catch (RuntimeException e) {
+                LOGGER.debug("Unable to end abandoned SSE stream", e);
+            }
+        }
+    }
+
+    private void shutdown() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            // unlike close(), the queue is kept so the client gets everything up to here
+            queue.addLast(SHUTDOWN_EVENT);
+            closed = true;
+            detach();
+            scheduleDrain();
+        } finally {
+            unlock();
+        }
+    }
+
+    // must hold lock
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        detach();
+        // the writer does the actual close, so we never touch the network here
+        scheduleDrain();
+    }
+
+    // must hold lock
+    private void detach() {
+        OPEN_STREAMERS.remove(this);
+        closeActions.forEach(Runnable::run);
+        closeActions.clear();
+        if (keepAlive != null) {
+            keepAlive.cancel(false);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            ServerSentEvent next;
+            boolean shouldClose;
+            lock.lock();
+            try {
+                next = queue.pollFirst();
+                shouldClose = closed;
+                if (next == null) {
+                    draining = false;
+                }
+            } finally {
+                unlock();
+            }
+            if (next == null) {
+                if (shouldClose) {
+                    emitter.close();
+                }
+                return;
+            }
+            try {
+                emitter.emit(next);
+                EVENTS_SENT.increment();
+            } catch (RuntimeException e) {
+                LOGGER.debug("SSE consumer went away", e);
+                lock.lock();
+                try {
+                    close();
+                } finally {
+                    unlock();
+                }
+            }
+        }
+    }
+
     private void postKeepAlive() {
-        emitter.emit(KEEP_ALIVE_EVENT);
+        lock.lock();
+        try {
+            // only needed if nothing else is flowing
+            if (queue.isEmpty()) {
+                enqueue(KEEP_ALIVE_EVENT);
+            }
+        } finally {
+            unlock();
+        }
     }
 
 }
@@ -0,0 +1,185 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import com.techshroom.lettar.Response;
+import com.techshroom.lettar.addons.sse.ServerSentEvent;
+import net.octyl.ytmp3.conversion.Conversion;
+import net.octyl.ytmp3.conversion.ConversionManager;
+import net.octyl.ytmp3.conversion.UniqueId;
+import net.octyl.ytmp3.util.Config;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams the events of many conversions over one SSE connection.
+ *
+ * <p>
+ * Every event keeps its original name, but its ID becomes
+ * {@code <conversion>:<event id>} and its data becomes a JSON object with the
+ * {@code conversion} and the original {@code data}. The first event on the
+ * stream is a {@code session} event carrying the session ID, which can be used
+ * to watch more conversions or stop watching some. A watched ID that doesn't exist produces a
+ * {@code missing} event, and one past {@code sse_max_watches_per_session}
+ * produces a {@code rejected} event.
+ * </p>
+ *
+ * <p>
+ * Watch specifications are either {@code <conversion>} to stream everything,
+ * or {@code <conversion>:<event id>} to resume after the given event.
+ * Watching a conversion that is already watched starts it over from the
+ * given position.
+ * </p>
+ */
+public class MultiplexedStreamer {
+
+    private static final PropOrEnvConfigOption<Integer> MAX_WATCHES =
+        Config.NAMESPACE.create("sse_max_watches_per_session", Loaders.forIntInRange(1, 65536), 64);
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final UniqueId SESSION_ID = new UniqueId("stream");
+    private static final Map<String, MultiplexedStreamer> SESSIONS = new ConcurrentHashMap<>();
+    private static final Splitter SPEC_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    public static MultiplexedStreamer open() {
+        String session = SESSION_ID.next();
+        MultiplexedStreamer streamer = new MultiplexedStreamer(session);
+        SESSIONS.put(session, streamer);
+        streamer.streamer.onClose(() -> SESSIONS.remove(session));
+        streamer.streamer.send(ServerSentEvent.builder().name("session").data(session).build());
+        return streamer;
+    }
+
+    @Nullable
+    public static MultiplexedStreamer getSession(String session) {
+        return SESSIONS.get(session);
+    }
+
+    /**
+     * Parses watch specifications into {@code conversion -> events to skip}.
+     * Each spec may itself be a comma-separated list.
+     */
+    public static Map<String, Integer> parseWatch(Iterable<String> specs) {
+        Map<String, Integer> watch = new LinkedHashMap<>();
+        for (String spec : specs) {
+            for (String part : SPEC_SPLITTER.split(spec)) {
+                int colon = part.indexOf(':');
+                if (colon == -1) {
+                    watch.put(part, 0);
+                    continue;
+                }
+                int skip = 0;
+                try {
+                    // ID is number of events passed out
+                    skip = Integer.parseInt(part.substring(colon + 1)) + 1;
+                } catch (NumberFormatException ignored) {
+                    // malformed ID is fine, we'll just ignore it
+                }
+                watch.put(part.substring(0, colon), skip);
+            }
+        }
+        return watch;
+    }
+
+    private final String session;
+    private final EventListStreamer streamer = EventListStreamer.open();
+    // conversion -> detach action
+    private final Map<String, Runnable> watched = new HashMap<>();
+
+    private MultiplexedStreamer(String session) {
+        this.session = session;
+    }
+
+    public String getSession() {
+        return session;
+    }
+
+    public CompletionStage<? extends Response<? extends Object>> getResponseStage() {
+        return streamer.getResponseStage();
+    }
+
+    /**
+     * @return {@code false} if any conversion was rejected for going over
+     *     the watch limit
+     */
+    public synchronized boolean watch(Map<String, Integer> conversions) {
+        boolean allWatched = true;
+        for (Map.Entry<String, Integer> entry : conversions.entrySet()) {
+            String id = entry.getKey();
+            Runnable previous = watched.remove(id);
+            if (previous != null) {
+                previous.run();
+            }
+            Conversion conversion = ConversionManager.getConversion(id);
+            if (conversion == null) {
+                streamer.send(conversionEvent("missing", id));
+                continue;
+            }
+            if (watched.size() >= MAX_WATCHES.get()) {
+                streamer.send(conversionEvent("rejected", id));
+                allWatched = false;
+                continue;
+            }
+            watched.put(id, streamer.attach(id, conversion.getObservableEvents(), entry.getValue(), event -> tag(id, event)));
+        }
+        return allWatched;
+    }
+
+    public synchronized void unwatch(Iterable<String> conversions) {
+        for (String id : conversions) {
+            Runnable detach = watched.remove(id);
+            if (detach != null) {
+                detach.run();
+            }
+        }
+    }
+
+    private static ServerSentEvent conversionEvent(String name, String conversion) {
+        ObjectNode data = JSON.createObjectNode();
+        data.put("conversion", conversion);
+        return ServerSentEvent.builder().name(name).data(data.toString()).build();
+    }
+
+    private static ServerSentEvent tag(String conversion, ServerSentEvent event) {
+        var builder = ServerSentEvent.builder();
+        event.getName().ifPresent(builder::name);
+        event.getId().ifPresent(id -> builder.id(conversion + ":" + id));
+        ObjectNode data = JSON.createObjectNode();
+        data.put("conversion", conversion);
+        event.getData().ifPresent(d -> data.put("data", d));
+        return builder.data(data.toString()).build();
+    }
+
+}
@@ -25,7 +25,11 @@
 
 package net.octyl.ytmp3.controllers;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.base.Strings;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Resources;
 import com.techshroom.lettar.Request;
@@ -41,14 +45,19 @@ import com.techshroom.lettar.pipe.builtins.method.Method;
 import com.techshroom.lettar.pipe.builtins.path.Path;
 import com.techshroom.lettar.routing.HttpMethod;
 import com.techshroom.templar.jackson.JsonBodyCodec;
+import net.octyl.ytmp3.Readiness;
 import net.octyl.ytmp3.TemplateRenderer;
 import net.octyl.ytmp3.VelocityTemplateRenderer;
 import net.octyl.ytmp3.conversion.Conversion;
 import net.octyl.ytmp3.conversion.ConversionManager;
+import net.octyl.ytmp3.conversion.LibraryFeed;
+import net.octyl.ytmp3.conversion.Reconciler;
+import net.octyl.ytmp3.conversion.ResultCache;
+import net.octyl.ytmp3.conversion.ResultMetadata;
 import net.octyl.ytmp3.conversion.Status;
+import net.octyl.ytmp3.metrics.Metrics;
 import net.octyl.ytmp3.util.HttpFileName;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import javafx.collections.ObservableList;
 import org.apache.tika.detect.CompositeDetector;
 import org.apache.tika.detect.DefaultDetector;
 import org.apache.tika.detect.NameDetector;
@@ -61,11 +70,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
@@ -76,7 +90,9 @@ public class RouteContainer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RouteContainer.class);
 
-    private final TemplateRenderer index = VelocityTemplateRenderer.load("net/octyl/ytmp3/templates/index.html.vm");
+    // loaded on first use, Velocity boots in the background during startup
+    private final Supplier<TemplateRenderer> index = Suppliers.memoize(() ->
+        VelocityTemplateRenderer.load("net/octyl/ytmp3/templates/index.html.vm"));
     private final AssetManager assetManager = AssetManager.create(path -> {
         try {
             return Asset.create(Resources.getResource(path).openStream());
@@ -93,7 +109,7 @@ public class RouteContainer {
     @Path("/")
     @Produces("text/html")
     public Response<String> index() {
-        return SimpleResponse.of(200, index.render(ImmutableMap.of()));
+        return SimpleResponse.of(200, index.get().render(ImmutableMap.of()));
     }
 
     @Path("/mp3ify")
@@ -124,6 +140,8 @@ public class RouteContainer {
             to = null;
         }
 
+        // taken first, so the feed replays anything that races with the snapshot
+        long sequence = LibraryFeed.currentSequence();
         Stream<Conversion> conversionStream = ConversionManager.conversions()
             .filter(c -> c.getStatus() == Status.SUCCESSFUL);
         if (from != null || to != null) {
@@ -134,27 +152,69 @@ public class RouteContainer {
                 return millis >= f && millis < t;
             });
         }
-        return SimpleResponse.of(200,
-            conversionStream
+        return SimpleResponse.builder()
+            .ok_200()
+            .body(conversionStream
                 .sorted(Comparator.comparing(Conversion::getEndTime).reversed())
                 .map(c -> ImmutableMap.of(
                     "id", c.getId(),
                     "name", c.getFileName()))
-                .collect(toImmutableList()));
+                .collect(toImmutableList()))
+            .headers(ImmutableMap.of("library-sequence", String.valueOf(sequence)))
+            .build();
+    }
+
+    @Path("/mp3ify/changes")
+    @Produces("text/event-stream")
+    public CompletionStage<Response<Object>> mp3ifyChanges(Request<Object> request) {
+        Long since = request.getHeaders().getSingleValue("Last-Event-ID")
+            .or(() -> request.getQueryParts().get("since").stream().findFirst())
+            .map(s -> {
+                try {
+                    return Long.parseLong(s);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            })
+            .orElse(null);
+
+        EventListStreamer streamer = EventListStreamer.open();
+        boolean resumed = since != null
+            && LibraryFeed.subscribe(since, (events, skip) -> streamer.attach("library", events, skip, UnaryOperator.identity()));
+        if (!resumed) {
+            // tell the client to re-fetch the list, then keep it up to date from here
+            LibraryFeed.subscribeToNew((events, skip) -> {
+                streamer.send(ServerSentEvent.builder().name("reset").data(String.valueOf(LibraryFeed.currentSequence())).build());
+                streamer.attach("library", events, skip, UnaryOperator.identity());
+            });
+        }
+        @SuppressWarnings("unchecked")
+        CompletionStage<Response<Object>> response = (CompletionStage<Response<Object>>) streamer.getResponseStage();
+        return response;
     }
 
     @Method(HttpMethod.POST)
     @Path("/mp3ify")
     @JsonBodyCodec
-    public Response<Object> mp3ify(Request<Mp3ifyBody> request) {
+    public CompletionStage<Response<Object>> mp3ify(Request<Mp3ifyBody> request) {
         if (request.getBody() == null) {
-            return SimpleResponse.of(400, "body.not.provided");
+            return CompletableFuture.completedFuture(SimpleResponse.of(400, "body.not.provided"));
         }
         String video = request.getBody().getVideo();
         if (Strings.isNullOrEmpty(video)) {
-            return SimpleResponse.of(400, "video.not.provided");
+            return CompletableFuture.completedFuture(SimpleResponse.of(400, "video.not.provided"));
         }
-        return SimpleResponse.of(201, ConversionManager.newConversion(video).getId());
+        // unknown sites are looked up with youtube-dl, which mustn't hold up the event loop
+        return ConversionManager.newConversion(video).<Response<Object>>handle((conversion, error) -> {
+            if (error == null) {
+                return SimpleResponse.of(201, conversion.getId());
+            }
+            if (Throwables.getRootCause(error) instanceof RejectedExecutionException) {
+                return SimpleResponse.of(503, "server.shutting.down");
+            }
+            Throwables.throwIfUnchecked(error);
+            throw new CompletionException(error);
+        });
     }
 
     @Method(HttpMethod.DELETE)
@@ -200,19 +260,62 @@ public class RouteContainer {
             .orElseGet(() -> SimpleResponse.of(404, id));
     }
 
+    @Path("/mp3ify/{*}/timings")
+    @JsonBodyCodec
+    public Response<Object> mp3ifyTimings(String id) {
+        return conversion(id)
+            .map(conversion -> SimpleResponse.<Object>of(200, conversion.getLatestTimings()))
+            .orElseGet(() -> SimpleResponse.of(404, id));
+    }
+
     @Path("/mp3ify/{*}/stream")
     @Produces("text/event-stream")
     public CompletionStage<Response<Object>> mp3ifyStream(Request<Object> request, String id) {
         return conversion(id)
-            .map(Conversion::getObservableEvents)
-            .map(events -> makeStream(request, events))
+            .map(conversion -> makeStream(request, conversion))
             .orElseGet(() -> {
                 CompletionStage<Response<Object>> respStage = CompletableFuture.completedFuture(SimpleResponse.of(404, id));
                 return respStage;
             });
     }
 
-    private CompletionStage<Response<Object>> makeStream(Request<Object> request, ObservableList<ServerSentEvent> events) {
+    @Path("/mp3ify/streams")
+    @Produces("text/event-stream")
+    public CompletionStage<Response<Object>> mp3ifyStreams(Request<Object> request) {
+        Map<String, Integer> watch = MultiplexedStreamer.parseWatch(request.getQueryParts().get("watch"));
+        // the browser only remembers the last ID, which supersedes that conversion's position
+        request.getHeaders().getSingleValue("Last-Event-ID")
+            .ifPresent(lastEventId -> watch.putAll(MultiplexedStreamer.parseWatch(ImmutableList.of(lastEventId))));
+
+        MultiplexedStreamer streamer = MultiplexedStreamer.open();
+        streamer.watch(watch);
+        @SuppressWarnings("unchecked")
+        CompletionStage<Response<Object>> response = (CompletionStage<Response<Object>>) streamer.getResponseStage();
+        return response;
+    }
+
+    @Method(HttpMethod.POST)
+    @Path("/mp3ify/streams/{*}")
+    @JsonBodyCodec
+    public Response<Object> mp3ifyStreamsWatch(Request<StreamWatchBody> request, String session) {
+        MultiplexedStreamer streamer = MultiplexedStreamer.getSession(session);
+        if (streamer == null) {
+            return SimpleResponse.of(404, session);
+        }
+        StreamWatchBody body = request.getBody();
+        if (body == null || (body.getWatch() == null && body.getUnwatch() == null)) {
+            return SimpleResponse.of(400, "watch.not.provided");
+        }
+        if (body.getUnwatch() != null) {
+            streamer.unwatch(body.getUnwatch());
+        }
+        if (body.getWatch() != null && !streamer.watch(MultiplexedStreamer.parseWatch(body.getWatch()))) {
+            return SimpleResponse.of(429, "too.many.watches");
+        }
+        return SimpleResponse.of(204, null);
+    }
+
+    private CompletionStage<Response<Object>> makeStream(Request<Object> request, Conversion conversion) {
         String lastEventId = request.getHeaders().getSingleValue("Last-Event-ID").orElse(null);
 
         int skip = 0;
@@ -226,7 +329,7 @@ public class RouteContainer {
         }
 
         @SuppressWarnings("unchecked")
-        CompletionStage<Response<Object>> response = (CompletionStage<Response<Object>>) EventListStreamer.subscribe(events, skip);
+        CompletionStage<Response<Object>> response = (CompletionStage<Response<Object>>) EventListStreamer.subscribe(conversion.getId(), conversion.getObservableEvents(), skip);
         return response;
     }
 
@@ -243,24 +346,83 @@ public class RouteContainer {
             case FAILED:
                 return SimpleResponse.of(409, ImmutableMap.of(
                     "error", "conversion.failed"));
+            case EVICTED:
+                ConversionManager.reconvert(conversion);
+                return SimpleResponse.of(409, ImmutableMap.of(
+                    "error", "conversion.not.finished",
+                    "status", conversion.getStatus().toString()));
             default:
                 return SimpleResponse.of(409, ImmutableMap.of(
                     "error", "conversion.not.finished",
                     "status", conversion.getStatus().toString()));
         }
-        InputStream stream = Files.newInputStream(conversion.getResultFile());
+        // Successful downloads are normally served by DownloadHandler, this is only a fallback
+        ResultMetadata result = conversion.getResult();
+        if (result == null) {
+            return SimpleResponse.of(404, id);
+        }
+        InputStream stream = Files.newInputStream(result.getFile());
         stream = new BufferedInputStream(stream, 8192);
         return SimpleResponse.builder()
             .ok_200()
             .body(stream)
             .headers(ImmutableMap.of(
                 "content-disposition", HttpFileName.encodeDisposition(conversion.getFileName()),
-                "content-length", String.valueOf(Files.size(conversion.getResultFile())),
+                "content-length", String.valueOf(result.getSize()),
                 // ensure netty gzip is not applied
                 "content-encoding", "identity"))
             .build();
     }
 
+    @Path("/stats/cache")
+    @JsonBodyCodec
+    public Response<Object> cacheStats() {
+        CacheStats stats = ResultCache.stats();
+        return SimpleResponse.of(200, ImmutableMap.builder()
+            .put("entries", ResultCache.entryCount())
+            .put("bytes", ResultCache.weightBytes())
+            .put("hits", stats.hitCount())
+            .put("misses", stats.missCount())
+            .put("hitRatio", stats.hitRate())
+            .put("loads", stats.loadCount())
+            .put("evictions", stats.evictionCount())
+            .put("evictedBytes", stats.evictionWeight())
+            .build());
+    }
+
+    @Path("/stats/reconcile")
+    @JsonBodyCodec
+    public Response<Object> reconcileStats() {
+        Reconciler.Report report = Reconciler.getLastReport();
+        if (report == null) {
+            return SimpleResponse.of(404, "reconcile.not.finished");
+        }
+        return SimpleResponse.of(200, report.toMap());
+    }
+
+    @Path("/health")
+    @JsonBodyCodec
+    public Response<Object> health() {
+        return SimpleResponse.of(200, ImmutableMap.of("status", "ok"));
+    }
+
+    @Path("/ready")
+    @JsonBodyCodec
+    public Response<Object> ready() {
+        Readiness.Result result = Readiness.check();
+        return SimpleResponse.of(result.isReady() ? 200 : 503, result.toMap());
+    }
+
+    @Path("/metrics")
+    @Produces("text/plain")
+    public Response<Object> metrics() {
+        return SimpleResponse.builder()
+            .ok_200()
+            .body(Metrics.render())
+            .headers(ImmutableMap.of("content-type", "text/plain; version=0.0.4; charset=utf-8"))
+            .build();
+    }
+
     @Path("/assets/{**}")
     public Response<?> assets(String path) throws IOException {
         return assetManager.getAsset(path);
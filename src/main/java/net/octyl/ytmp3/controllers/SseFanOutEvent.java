@@ -0,0 +1,63 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.controllers;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Queueing new events from an attached list for one event stream. This runs
+ * on the thread that added the events, so it shows how much a busy stream
+ * slows down its producer.
+ */
+@Name("net.octyl.ytmp3.SseFanOut")
+@Label("SSE Fan-out")
+@Category({"YoutubeMp3Server", "HTTP"})
+@Description("Queueing new events for one event stream, including waiting for its lock")
+class SseFanOutEvent extends jdk.jfr.Event {
+
+    @Label("Source")
+    @Description("The conversion ID, or library for the library feed")
+    String source;
+
+    @Label("Events")
+    int events;
+
+    @Label("Queued")
+    @Description("Events waiting to be written afterwards")
+    int queued;
+
+    @Label("Dropped")
+    @Description("Progress events dropped to make room")
+    int dropped;
+
+    @Label("Closed")
+    @Description("Whether the stream was disconnected for falling behind")
+    boolean closed;
+
+}
@@ -0,0 +1,450 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+/**
+ * Content-addressed storage for results.
+ *
+ * <p>
+ * Every result is stored once, named after its SHA-256. Store names are mapped
+ * to those hashes, and each object is reference counted so it is only deleted
+ * when the last store name using it is removed. Identical results reached
+ * through different providers or URLs therefore share one file.
+ * </p>
+ *
+ * <p>
+ * Objects are sharded into two levels of directories by the start of their
+ * hash, e.g. {@code ab/cd/abcd...}, to keep directories small.
+ * </p>
+ *
+ * <p>
+ * Results from before this layout are stored under their store name, and
+ * objects from before sharding directly in the store directory. Both are
+ * still found, and {@link #migrateLegacyFiles()} and
+ * {@link #migrateFlatObjects()} move them over.
+ * </p>
+ *
+ * <p>
+ * Changes are made to the given database, but not committed. That is left to
+ * the caller, so they can commit together with their own records.
+ * </p>
+ */
+class ContentStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentStore.class);
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path directory;
+    // store name -> hash
+    private final HTreeMap<String, String> names;
+    // hash -> number of store names
+    private final HTreeMap<String, Integer> references;
+    // all guarded by this, counts links so reconcile can tell which names are newer than its snapshot
+    private long linkGeneration;
+    // store name -> generation it was linked in, only for names linked since the last reconcile
+    private final Map<String, Long> recentLinks = new HashMap<>();
+
+    ContentStore(Path directory, DB db) {
+        this.directory = directory;
+        this.names = db.hashMap("content-names")
+            .keySerializer(Serializer.STRING)
+            .valueSerializer(Serializer.STRING)
+            .createOrOpen();
+        this.references = db.hashMap("content-references")
+            .keySerializer(Serializer.STRING)
+            .valueSerializer(Serializer.INTEGER)
+            .createOrOpen();
+    }
+
+    private Path objectPath(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    /**
+     * @return where the object currently is, which is only outside of its
+     *     shard while it is waiting for migration
+     */
+    @Nullable
+    private Path locate(String hash) {
+        Path sharded = objectPath(hash);
+        if (Files.exists(sharded)) {
+            return sharded;
+        }
+        Path flat = directory.resolve(hash);
+        if (Files.exists(flat)) {
+            return flat;
+        }
+        return null;
+    }
+
+    private Stream<Path> listObjects() throws IOException {
+        return Files.walk(directory, 3)
+            .filter(Files::isRegularFile)
+            .filter(file -> HASH.matcher(file.getFileName().toString()).matches());
+    }
+
+    private List<Path> listLegacyFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                .filter(Files::isRegularFile)
+                .filter(file -> !HASH.matcher(file.getFileName().toString()).matches())
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Moves {@code file} into the store, unless identical content is already
+     * there, and maps {@code storeName} to it.
+     *
+     * @return the stored object
+     */
+    Path add(String storeName, Path file) throws IOException {
+        String hash = FileHash.create(file);
+        // the file won't be at this path for much longer
+        FileHash.forget(file);
+        synchronized (this) {
+            Path object = locate(hash);
+            if (object != null) {
+                Files.delete(file);
+                StorageManager.touch(hash);
+            } else {
+                long size = Files.size(file);
+                object = objectPath(hash);
+                Files.createDirectories(object.getParent());
+                Files.move(file, object, StandardCopyOption.REPLACE_EXISTING);
+                StorageManager.recordAdded(hash, size);
+            }
+            link(storeName, hash);
+            return object;
+        }
+    }
+
+    /**
+     * @return the stored result for {@code storeName}, if it exists
+     */
+    @Nullable
+    synchronized Path get(String storeName) {
+        String hash = names.get(storeName);
+        if (hash != null) {
+            return locate(hash);
+        }
+        Path legacy = directory.resolve(storeName);
+        if (Files.exists(legacy)) {
+            return legacy;
+        }
+        return null;
+    }
+
+    @Nullable
+    synchronized String getHash(String storeName) {
+        return names.get(storeName);
+    }
+
+    /**
+     * @return the store names that use the object called {@code objectName},
+     *     which is either a hash or the store name of a legacy file
+     */
+    synchronized Set<String> getStoreNames(String objectName) {
+        if (!HASH.matcher(objectName).matches()) {
+            return ImmutableSet.of(objectName);
+        }
+        return names.entrySet().stream()
+            .filter(e -> e.getValue().equals(objectName))
+            .map(e -> e.getKey())
+            .collect(toImmutableSet());
+    }
+
+    synchronized void remove(String storeName) throws IOException {
+        String hash = names.remove(storeName);
+        if (hash != null) {
+            release(hash);
+        }
+        Path legacy = directory.resolve(storeName);
+        if (Files.deleteIfExists(legacy)) {
+            ResultCache.invalidate(storeName);
+            StorageManager.recordRemoved(storeName);
+        }
+    }
+
+    /**
+     * Moves the result of {@code from} over to {@code to}, unless {@code to}
+     * already has one, and drops {@code from}.
+     */
+    synchronized void rename(String from, String to) throws IOException {
+        String hash = names.get(from);
+        if (hash != null) {
+            if (!names.containsKey(to)) {
+                link(to, hash);
+            }
+            remove(from);
+            return;
+        }
+        Path legacy = directory.resolve(from);
+        Path target = directory.resolve(to);
+        if (Files.exists(legacy) && !names.containsKey(to) && !Files.exists(target)) {
+            long size = Files.size(legacy);
+            Files.move(legacy, target);
+            FileHash.forget(legacy);
+            ResultCache.invalidate(from);
+            StorageManager.recordRemoved(from);
+            StorageManager.recordAdded(to, size);
+            return;
+        }
+        remove(from);
+    }
+
+    /**
+     * @return the current link generation, to take before snapshotting the
+     *     live store names
+     */
+    synchronized long getLinkGeneration() {
+        return linkGeneration;
+    }
+
+    /**
+     * @return whether {@code storeName} was linked after {@code generation}
+     *     was taken
+     */
+    synchronized boolean linkedSince(String storeName, long generation) {
+        Long linkedIn = recentLinks.get(storeName);
+        return linkedIn != null && linkedIn > generation;
+    }
+
+    /**
+     * Drops store names that are no longer live, fixes reference counts that
+     * drifted from the name mapping, and deletes files nothing refers to.
+     *
+     * @param liveStoreNames the store names that are recorded or still being
+     *     converted
+     * @param generation the link generation from before {@code liveStoreNames}
+     *     was taken, names linked since then are kept even if they aren't in it
+     */
+    synchronized void reconcile(Set<String> liveStoreNames, long generation, Reconciler.Report report) throws IOException {
+        for (String storeName : ImmutableSet.copyOf(names.keySet())) {
+            if (!liveStoreNames.contains(storeName) && !linkedSince(storeName, generation)) {
+                release(names.remove(storeName));
+                report.danglingNames.increment();
+            }
+        }
+
+        Map<String, Integer> counts = names.values().stream()
+            .collect(Collectors.toMap(hash -> hash, hash -> 1, Integer::sum));
+        for (String hash : Sets.union(ImmutableSet.copyOf(references.keySet()), counts.keySet())) {
+            Integer count = counts.get(hash);
+            if (!Objects.equals(references.get(hash), count)) {
+                if (count == null) {
+                    references.remove(hash);
+                } else {
+                    references.put(hash, count);
+                }
+                report.repairedReferences.increment();
+            }
+        }
+
+        List<Path> files;
+        try (Stream<Path> objects = listObjects()) {
+            files = Stream.concat(objects, listLegacyFiles().stream()).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String objectName = file.getFileName().toString();
+            boolean referenced = HASH.matcher(objectName).matches()
+                ? counts.containsKey(objectName)
+                // leave hidden files alone, they aren't ours
+                : objectName.startsWith(".") || liveStoreNames.contains(objectName);
+            if (!referenced) {
+                LOGGER.info("Deleting orphaned object " + objectName);
+                Files.deleteIfExists(file);
+                FileHash.forget(file);
+                ResultCache.invalidate(objectName);
+                StorageManager.recordRemoved(objectName);
+                report.orphanObjects.increment();
+            }
+        }
+        // newer links still matter to the next run
+        recentLinks.values().removeIf(linkedIn -> linkedIn <= generation);
+    }
+
+    // must hold lock
+    private void link(String storeName, String hash) throws IOException {
+        recentLinks.put(storeName, ++linkGeneration);
+        String previous = names.put(storeName, hash);
+        if (!hash.equals(previous)) {
+            references.merge(hash, 1, Integer::sum);
+            if (previous != null) {
+                release(previous);
+            }
+        }
+    }
+
+    // must hold lock
+    private void release(String hash) throws IOException {
+        Integer remaining = references.compute(hash, (k, count) -> count == null || count <= 1 ? null : count - 1);
+        if (remaining == null) {
+            Path object = locate(hash);
+            if (object != null) {
+                Files.delete(object);
+                FileHash.forget(object);
+            }
+            ResultCache.invalidate(hash);
+            StorageManager.recordRemoved(hash);
+        }
+    }
+
+    /**
+     * Moves results stored under their store name into the content-addressed
+     * layout. Safe to run while the store is in use.
+     *
+     * @return the number of files migrated
+     */
+    int migrateLegacyFiles() {
+        List<Path> legacyFiles;
+        try {
+            legacyFiles = listLegacyFiles().stream()
+                .filter(file -> !file.getFileName().toString().startsWith("."))
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // hash everything in parallel up front, the moves are cheap afterwards
+        Map<Path, String> hashes = FileHash.createAll(legacyFiles).join();
+        int migrated = 0;
+        for (Path file : legacyFiles) {
+            String storeName = file.getFileName().toString();
+            String hash = hashes.get(file);
+            if (hash == null) {
+                LOGGER.warn("Unable to hash " + file + ", leaving it in place");
+                continue;
+            }
+            try {
+                addLegacy(storeName, file, hash);
+                migrated++;
+            } catch (IOException e) {
+                LOGGER.warn("Unable to migrate " + file + " into the content store", e);
+            }
+        }
+        return migrated;
+    }
+
+    private synchronized void addLegacy(String storeName, Path file, String hash) throws IOException {
+        long size = Files.size(file);
+        if (locate(hash) != null) {
+            Files.delete(file);
+        } else {
+            Path object = objectPath(hash);
+            Files.createDirectories(object.getParent());
+            Files.move(file, object);
+        }
+        FileHash.forget(file);
+        ResultCache.invalidate(storeName);
+        StorageManager.recordRemoved(storeName);
+        StorageManager.recordAdded(hash, size);
+        link(storeName, hash);
+    }
+
+    /**
+     * Moves objects stored directly in the store directory into their shard.
+     * Safe to run while the store is in use.
+     *
+     * @return the number of objects moved
+     */
+    int migrateFlatObjects() {
+        List<Path> flatObjects;
+        try (Stream<Path> files = Files.list(directory)) {
+            flatObjects = files
+                .filter(Files::isRegularFile)
+                .filter(file -> HASH.matcher(file.getFileName().toString()).matches())
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int migrated = 0;
+        for (Path file : flatObjects) {
+            Path object = objectPath(file.getFileName().toString());
+            try {
+                synchronized (this) {
+                    Files.createDirectories(object.getParent());
+                    Files.move(file, object, StandardCopyOption.REPLACE_EXISTING);
+                }
+                FileHash.forget(file);
+                migrated++;
+            } catch (IOException e) {
+                LOGGER.warn("Unable to move " + file + " into its shard", e);
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Re-hashes every stored object in parallel, and reports those whose
+     * content no longer matches their name. Hashes are cached against size
+     * and modification time, so only changed objects are actually read.
+     *
+     * @return the names of the corrupt objects
+     */
+    Set<String> verifyObjects() {
+        List<Path> objects;
+        try (Stream<Path> files = listObjects()) {
+            objects = files.collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Map<Path, String> hashes = FileHash.createAll(objects).join();
+        Set<String> corrupt = hashes.entrySet().stream()
+            .filter(e -> !e.getKey().getFileName().toString().equals(e.getValue()))
+            .map(e -> e.getKey().getFileName().toString())
+            .collect(toImmutableSet());
+        for (String objectName : corrupt) {
+            LOGGER.warn("Stored object " + objectName + " does not match its content");
+        }
+        return corrupt;
+    }
+
+}
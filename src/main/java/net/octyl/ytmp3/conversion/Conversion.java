@@ -28,11 +28,23 @@ package net.octyl.ytmp3.conversion;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
 import com.techshroom.lettar.addons.sse.ServerSentEvent;
 import net.octyl.ytmp3.conversion.videoid.VideoId;
+import net.octyl.ytmp3.conversion.videoid.UrlNormalizer;
 import net.octyl.ytmp3.conversion.videoid.VideoIdFinder;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.util.Config;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
@@ -45,20 +57,26 @@ import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
@@ -69,11 +87,14 @@ public class Conversion implements Runnable {
 
     private static final Logger LOGGER = LogManager.getLogger();
     private static final Path DEST_DIR = Paths.get("converted");
-    private static final Path WORKING_DIR;
+    // kept across restarts, so interrupted conversions can resume their downloads
+    private static final PropOrEnvConfigOption<String> WORKING_DIR_PATH =
+        Config.NAMESPACE.create("working_dir", Loaders.forString(), "work");
+    private static final Path WORKING_DIR = Paths.get(WORKING_DIR_PATH.get());
 
     static {
         try {
-            WORKING_DIR = Files.createTempDirectory("yt-mp3-working-dir");
+            Files.createDirectories(WORKING_DIR);
 
             if (!Files.exists(DEST_DIR)) {
                 Files.createDirectory(DEST_DIR);
@@ -81,11 +102,12 @@ public class Conversion implements Runnable {
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        StorageManager.scan(DEST_DIR);
     }
 
+    // closed by the ShutdownCoordinator, once nothing can write to it any more
     private static final DB VIDEO_ID_RECORDS = DBMaker
         .fileDB("dbs/id-records.db")
-        .closeOnJvmShutdown()
         .fileMmapEnableIfSupported()
         .make();
     private static final HTreeMap<String, String> VIDEO_ID_MAP =
@@ -94,26 +116,124 @@ public class Conversion implements Runnable {
             .keySerializer(Serializer.STRING)
             .valueSerializer(Serializer.STRING)
             .createOrOpen();
+    private static final ContentStore CONTENT_STORE = new ContentStore(DEST_DIR, VIDEO_ID_RECORDS);
 
     private static final String YOUTUBE_DL = ProcessManager.resolveProgram("youtube-dl")
         .orElseThrow(() -> new IllegalStateException("Missing youtube-dl!")).toAbsolutePath().toString();
 
+    // Progressive mode pipes youtube-dl into ffmpeg, so the MP3 can be downloaded while it is written
+    private static final PropOrEnvConfigOption<String> PROGRESSIVE =
+        Config.NAMESPACE.create("progressive", Loaders.forString(), "false");
+    @Nullable
+    private static final String FFMPEG;
+
+    static {
+        if (Boolean.parseBoolean(PROGRESSIVE.get())) {
+            FFMPEG = ProcessManager.resolveProgram("ffmpeg")
+                .orElseThrow(() -> new IllegalStateException("Missing ffmpeg, required for progressive mode!"))
+                .toAbsolutePath().toString();
+        } else {
+            FFMPEG = null;
+        }
+    }
+
+    private static final Map<Status, Counter> STATUS_CHANGES = Maps.toMap(EnumSet.allOf(Status.class),
+        status -> Metrics.counter("ytmp3_conversion_status_changes_total",
+            "Conversions that moved into each status", "status", status.name()));
+
     private static final Pattern UNSAFE_FILE_NAME = Pattern.compile("[/\\\\?%*:|\"<>]");
 
     static void remove(String storeName) {
         VIDEO_ID_MAP.remove(storeName);
-        VIDEO_ID_RECORDS.commit();
         try {
-            Files.deleteIfExists(DEST_DIR.resolve(storeName));
+            CONTENT_STORE.remove(storeName);
         } catch (IOException e) {
             throw new IllegalStateException(e);
+        } finally {
+            VIDEO_ID_RECORDS.commit();
         }
     }
 
+    /**
+     * Moves the record and result of {@code from} over to {@code to}, for
+     * store names whose derivation has changed.
+     */
+    static void renameStore(String from, String to) {
+        String fileName = VIDEO_ID_MAP.remove(from);
+        if (fileName != null) {
+            VIDEO_ID_MAP.putIfAbsent(to, fileName);
+        }
+        try {
+            CONTENT_STORE.rename(from, to);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            VIDEO_ID_RECORDS.commit();
+        }
+    }
+
+    /**
+     * @return the store names sharing the stored object {@code objectName}
+     */
+    static Set<String> getStoreNames(String objectName) {
+        return CONTENT_STORE.getStoreNames(objectName);
+    }
+
+    static Set<String> getRecordedStoreNames() {
+        return ImmutableSet.copyOf(VIDEO_ID_MAP.keySet());
+    }
+
+    static boolean hasResult(String storeName) {
+        return CONTENT_STORE.get(storeName) != null;
+    }
+
+    static ContentStore getContentStore() {
+        return CONTENT_STORE;
+    }
+
+    static void commitRecords() {
+        VIDEO_ID_RECORDS.commit();
+    }
+
+    public static void closeRecords() {
+        VIDEO_ID_RECORDS.commit();
+        VIDEO_ID_RECORDS.close();
+    }
+
+    static String getYoutubeDl() {
+        return YOUTUBE_DL;
+    }
+
+    /**
+     * @return the directory holding the stored results
+     */
+    public static Path getResultRoot() {
+        return DEST_DIR;
+    }
+
+    /**
+     * @return {@code true} if the youtube-dl found at startup can still be run
+     */
+    public static boolean isYoutubeDlAvailable() {
+        return Files.isExecutable(Paths.get(YOUTUBE_DL));
+    }
+
+    /**
+     * @return the directory holding every conversion's working directory
+     */
+    static Path getWorkingRoot() {
+        return WORKING_DIR;
+    }
+
     // Stores the entire event stream so it can be replayed from any point
     private transient final ObservableList<ServerSentEvent> events = FXCollections.observableList(new CopyOnWriteArrayList<>());
     // new events may not be fired until we start running
     private transient boolean canFireEvents;
+    // set when shutdown kills our processes, so the conversion is resumed rather than failed
+    private transient volatile boolean checkpointed;
+    // the youtube-dl half of a progressive pipeline, process only tracks ffmpeg
+    @Nullable
+    private transient volatile Process upstreamProcess;
 
     private void pushEvent(String type, String message) {
         if (!canFireEvents) {
@@ -127,7 +247,7 @@ public class Conversion implements Runnable {
     private final String id;
     private final String video;
     private transient final Path workingDir;
-    private transient final VideoId videoId;
+    private final VideoId videoId;
     private transient final String storeName;
     private transient final ObjectProperty<Status> statusProperty =
         new SimpleObjectProperty<>(this, "status", Status.CREATED);
@@ -139,23 +259,54 @@ public class Conversion implements Runnable {
     private String rawOutput;
     @Nullable
     private String fileName;
+    // serialized as is, the getter may go to storage for legacy records
+    @JsonProperty("result")
+    @Nullable
+    private volatile ResultMetadata result;
+    @Nullable
+    private transient volatile ProgressiveFile progressiveFile;
+    // only for runs since the last start, the timings event keeps older ones
+    @Nullable
+    private transient volatile ConversionTimings timings;
 
     {
         statusProperty.addListener(observable -> {
             // fire event with new status
             pushEvent("status", getStatus().name());
+            if (canFireEvents) {
+                STATUS_CHANGES.get(getStatus()).increment();
+            }
+            if (canFireEvents && getStatus() == Status.SUCCESSFUL) {
+                LibraryFeed.conversionAdded(this);
+            }
         });
     }
 
+    /**
+     * @return the ID for {@code video} when neither a handler nor the
+     *     extractor knows it, which at least dedupes equivalent URLs
+     */
+    public static VideoId unknownVideoId(String video) {
+        return new VideoId("unknown", UrlNormalizer.normalize(video).map(URI::toString).orElse(video));
+    }
+
+    /**
+     * @param videoId which video this is, or {@code null} for records from
+     *     before it was kept, to work it out from {@code video} as was done then
+     */
     @JsonCreator
-    public Conversion(@JsonProperty("id") String id, @JsonProperty("video") String video) {
+    public Conversion(@JsonProperty("id") String id,
+                      @JsonProperty("video") String video,
+                      @JsonProperty("videoId") @Nullable VideoId videoId) {
         this.id = checkNotNull(id, "id");
         this.video = checkNotNull(video, "video");
 
         try {
             workingDir = WORKING_DIR.resolve(id);
-            videoId = VideoIdFinder.findId(video).orElse(new VideoId("unknown", video));
-            storeName = UNSAFE_FILE_NAME.matcher(videoId.getProvider() + "-" + videoId.getId())
+            this.videoId = videoId != null
+                ? videoId
+                : VideoIdFinder.findId(video).orElse(new VideoId("unknown", video));
+            storeName = UNSAFE_FILE_NAME.matcher(this.videoId.getProvider() + "-" + this.videoId.getId())
                 .replaceAll("_");
         } catch (Exception e) {
             // setup failure if it occurs early
@@ -213,39 +364,103 @@ public class Conversion implements Runnable {
         return fileName;
     }
 
+    /**
+     * @return the file being written by a progressive conversion, if one is
+     *     currently running
+     */
+    @Nullable
+    @JsonIgnore
+    public ProgressiveFile getProgressiveFile() {
+        return progressiveFile;
+    }
+
+    /**
+     * @return where the result is stored, its size and when it completed, if
+     *     there is one
+     */
+    @JsonIgnore
+    @Nullable
+    public ResultMetadata getResult() {
+        return currentResult();
+    }
+
+    @JsonIgnore
+    public FileTime getEndTime() {
+        ResultMetadata result = currentResult();
+        return FileTime.fromMillis(result == null ? 0L : result.getCompletedAt());
+    }
+
+    @JsonIgnore
     @Nullable
-    private transient FileTime cachedFileTime;
+    public Path getResultFile() {
+        ResultMetadata result = currentResult();
+        return result == null ? null : result.getFile();
+    }
 
+    /**
+     * @return the SHA-256 of the result, if it has been moved into the
+     *     content store
+     */
     @JsonIgnore
-    public synchronized FileTime getEndTime() {
-        if (cachedFileTime != null) {
-            return cachedFileTime;
+    @Nullable
+    public String getContentHash() {
+        ResultMetadata result = currentResult();
+        return result == null ? null : result.getContentHash();
+    }
+
+    @Nullable
+    private ResultMetadata currentResult() {
+        ResultMetadata result = this.result;
+        if (result == null && getStatus() == Status.SUCCESSFUL) {
+            // records from before metadata was kept, until the reconciler fills them in
+            refreshResult();
+            result = this.result;
+        }
+        return result;
+    }
+
+    private void recordResult(Path file) throws IOException {
+        result = ResultMetadata.record(file, CONTENT_STORE.getHash(storeName), System.currentTimeMillis());
+    }
+
+    /**
+     * Re-reads the result metadata from storage, for records from before it
+     * was kept, or results that have since been moved or deleted.
+     *
+     * @return {@code true} if the metadata changed
+     */
+    boolean refreshResult() {
+        Path file = CONTENT_STORE.get(storeName);
+        ResultMetadata current = result;
+        if (file == null) {
+            result = null;
+            return current != null;
         }
-        Path resultFile = getResultFile();
-        if (resultFile == null) {
-            return FileTime.fromMillis(0L);
+        if (current != null && current.getFile().equals(file)) {
+            return false;
         }
         try {
-            return cachedFileTime = Files.readAttributes(resultFile, BasicFileAttributes.class).lastModifiedTime();
+            long completedAt = current != null
+                ? current.getCompletedAt()
+                : Files.getLastModifiedTime(file).toMillis();
+            result = ResultMetadata.record(file, CONTENT_STORE.getHash(storeName), completedAt);
         } catch (IOException e) {
-            return FileTime.fromMillis(0L);
+            result = null;
         }
+        return true;
     }
 
-    @JsonIgnore
-    @Nullable
-    public Path getResultFile() {
-        Path potential = DEST_DIR.resolve(storeName);
-        if (Files.exists(potential)) {
-            return potential;
-        }
-        return null;
+    void clearResult() {
+        result = null;
     }
 
     @Nullable
     private Path getResultFileInWorkingDir() {
         try (Stream<Path> stream = Files.list(workingDir)) {
-            return stream.findFirst().orElse(null);
+            // a resumed conversion may have left partial downloads behind
+            return stream
+                .filter(file -> file.getFileName().toString().endsWith(".mp3"))
+                .findFirst().orElse(null);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -270,44 +485,146 @@ public class Conversion implements Runnable {
         return events;
     }
 
+    /**
+     * @return the stage timings of the latest run, which come from its
+     *     {@code timings} event if it hasn't run since the server started, or
+     *     nothing if no run has finished
+     */
+    @JsonIgnore
+    public Map<String, Object> getLatestTimings() {
+        ConversionTimings current = timings;
+        if (current != null) {
+            return current.toMap();
+        }
+        List<ServerSentEvent> history = ImmutableList.copyOf(events);
+        for (ServerSentEvent event : Lists.reverse(history)) {
+            if (event.getName().filter("timings"::equals).isPresent() && event.getData().isPresent()) {
+                try {
+                    return ConversionTimings.fromJson(event.getData().get());
+                } catch (JsonProcessingException e) {
+                    LOGGER.warn(storeName + ": Unreadable timings event", e);
+                    break;
+                }
+            }
+        }
+        return ImmutableMap.of();
+    }
+
+    void markEnqueued() {
+        timings = new ConversionTimings();
+    }
+
+    private void mark(ConversionTimings.Stage stage) {
+        ConversionTimings current = timings;
+        if (current != null) {
+            current.mark(stage);
+        }
+    }
+
+    private void finishTimings() {
+        ConversionTimings current = timings;
+        if (current == null || current.isMarked(ConversionTimings.Stage.FINISHED)) {
+            return;
+        }
+        current.mark(ConversionTimings.Stage.FINISHED);
+        pushEvent("timings", current.toJson());
+    }
+
     private void fail(Exception e) {
         fail("Error: " + Throwables.getStackTraceAsString(e));
     }
 
     private void fail(String reason) {
+        if (checkpointed) {
+            LOGGER.info(storeName + ": Interrupted by shutdown, will resume on the next start");
+            return;
+        }
         setStatusLogged(Status.FAILED);
         failureReason = reason;
     }
 
+    /**
+     * Kills the processes of this conversion without failing it. It stays
+     * {@link Status#CONVERTING}, so it is resumed on the next start.
+     */
+    void checkpoint() {
+        checkpointed = true;
+        Stream.of(getProcessHandle(), upstreamProcess)
+            .filter(Objects::nonNull)
+            .forEach(p -> {
+                // youtube-dl runs ffmpeg itself for post-processing
+                p.descendants().forEach(ProcessHandle::destroy);
+                p.destroy();
+            });
+    }
+
     @Override
     public void run() {
         LOGGER.info("Starting conversion for " + storeName + " (" + videoId + ")");
         canFireEvents = true;
-        if (VIDEO_ID_MAP.containsKey(storeName)) {
+        mark(ConversionTimings.Stage.STARTED);
+        ConversionEvent event = new ConversionEvent();
+        event.begin();
+        try {
+            doRun();
+        } finally {
+            finishTimings();
+            event.end();
+            if (event.shouldCommit()) {
+                ResultMetadata current = result;
+                event.conversionId = id;
+                event.storeName = storeName;
+                event.processId = process;
+                event.progressive = FFMPEG != null;
+                event.status = getStatus().name();
+                event.bytesWritten = current == null ? 0 : current.getSize();
+                event.commit();
+            }
+        }
+    }
+
+    private void doRun() {
+        Path existingResult = VIDEO_ID_MAP.containsKey(storeName) ? CONTENT_STORE.get(storeName) : null;
+        if (existingResult != null) {
             fileName = VIDEO_ID_MAP.get(storeName);
+            StorageManager.touch(existingResult.getFileName().toString());
+            try {
+                recordResult(existingResult);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
 
             setStatusLogged(Status.SUCCESSFUL);
             return;
         }
         ByteArrayOutputStream cap = new ByteArrayOutputStream();
+        if (FFMPEG != null) {
+            runProgressive(cap);
+            return;
+        }
         try {
             LOGGER.info("Starting youtube-dl process");
             process = ProcessManager.startProcess(this::newProcess, new EventOutputStream(cap));
+            mark(ConversionTimings.Stage.PROCESS_STARTED);
             setStatusLogged(Status.CONVERTING);
             // wait for process
             Process process = getProcessHandle();
             checkNotNull(process, "process disappeared");
             int exitCode = process.waitFor();
+            mark(ConversionTimings.Stage.PROCESS_EXITED);
             if (exitCode == 0) {
                 Path resultFile = getResultFileInWorkingDir();
                 checkNotNull(resultFile, "no result given");
 
                 fileName = stripId(resultFile.getFileName().toString());
 
-                Files.move(resultFile, DEST_DIR.resolve(storeName), StandardCopyOption.REPLACE_EXISTING);
+                recordResult(CONTENT_STORE.add(storeName, resultFile));
+                mark(ConversionTimings.Stage.FILE_MOVED);
 
                 VIDEO_ID_MAP.put(storeName, fileName);
                 VIDEO_ID_RECORDS.commit();
+                mark(ConversionTimings.Stage.COMMITTED);
 
                 setStatusLogged(Status.SUCCESSFUL);
                 return;
@@ -323,6 +640,110 @@ public class Conversion implements Runnable {
         }
     }
 
+    private void runProgressive(ByteArrayOutputStream cap) {
+        ProgressiveFile file = null;
+        try {
+            // the name is needed up front, as the download starts before we're done
+            fileName = resolveFileName();
+
+            LOGGER.info("Starting youtube-dl | ffmpeg pipeline");
+            file = new ProgressiveFile(workingDir.resolve(storeName + ".mp3"));
+            List<Process> pipeline = newProgressivePipeline();
+            Process youtubeDl = pipeline.get(0);
+            Process ffmpeg = pipeline.get(1);
+            upstreamProcess = youtubeDl;
+            process = ProcessManager.track(ffmpeg);
+            mark(ConversionTimings.Stage.PROCESS_STARTED);
+            Future<?> output = ProcessManager.transfer(youtubeDl.getErrorStream(), new EventOutputStream(cap));
+            Future<?> audio = ProcessManager.transfer(ffmpeg.getInputStream(), file.openOutput());
+            progressiveFile = file;
+            setStatusLogged(Status.CONVERTING);
+            pushEvent("progressive", "");
+
+            int youtubeDlExit = youtubeDl.waitFor();
+            int ffmpegExit = ffmpeg.waitFor();
+            audio.get();
+            output.get();
+            mark(ConversionTimings.Stage.PROCESS_EXITED);
+            if (youtubeDlExit == 0 && ffmpegExit == 0) {
+                // readers opening it from here on are sent to the stored copy
+                recordResult(file.moveWith(path -> CONTENT_STORE.add(storeName, path)));
+                mark(ConversionTimings.Stage.FILE_MOVED);
+
+                VIDEO_ID_MAP.put(storeName, fileName);
+                VIDEO_ID_RECORDS.commit();
+                mark(ConversionTimings.Stage.COMMITTED);
+
+                file.finish(true);
+                setStatusLogged(Status.SUCCESSFUL);
+                return;
+            }
+            file.finish(false);
+            fail("Bad Exit Code " + youtubeDlExit + " | " + ffmpegExit + readFfmpegLog());
+        } catch (Exception e) {
+            if (file != null) {
+                file.finish(false);
+            }
+            fail(e);
+            Throwables.throwIfUnchecked(e);
+            throw new RuntimeException(e);
+        } finally {
+            progressiveFile = null;
+            upstreamProcess = null;
+            rawOutput = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(cap.toByteArray())).toString();
+            ConversionManager.refresh(this);
+        }
+    }
+
+    private String resolveFileName() throws IOException, InterruptedException {
+        Process nameProcess = new ProcessBuilder(YOUTUBE_DL,
+            "--no-playlist",
+            "--get-filename",
+            "--output", "%(title)s.mp3", video)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        String name;
+        try (var reader = new BufferedReader(new InputStreamReader(nameProcess.getInputStream(), StandardCharsets.UTF_8))) {
+            name = reader.readLine();
+        }
+        int exitCode = nameProcess.waitFor();
+        if (exitCode != 0 || Strings.isNullOrEmpty(name)) {
+            throw new IllegalStateException("Unable to get file name, exit code " + exitCode);
+        }
+        return name;
+    }
+
+    private List<Process> newProgressivePipeline() throws IOException {
+        if (!Files.exists(workingDir)) {
+            Files.createDirectories(workingDir);
+        }
+        return ProcessBuilder.startPipeline(List.of(
+            new ProcessBuilder(YOUTUBE_DL,
+                "--no-playlist",
+                "--format", "bestaudio/best",
+                "--output", "-", video)
+                .directory(workingDir.toFile()),
+            new ProcessBuilder(checkNotNull(FFMPEG),
+                "-hide_banner",
+                "-loglevel", "error",
+                "-i", "pipe:0",
+                "-vn",
+                "-codec:a", "libmp3lame",
+                "-q:a", "2",
+                "-f", "mp3", "pipe:1")
+                .directory(workingDir.toFile())
+                .redirectError(workingDir.resolve("ffmpeg.log").toFile())
+        ));
+    }
+
+    private String readFfmpegLog() {
+        try {
+            return "\n" + Files.readString(workingDir.resolve("ffmpeg.log"));
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
     private String stripId(String fileName) {
         // <video-name>-<id>.mp3
         return fileName.replace("-" + videoId.getId(), "");
@@ -335,6 +756,7 @@ public class Conversion implements Runnable {
             }
             return new ProcessBuilder(YOUTUBE_DL,
                 "--prefer-ffmpeg",
+                "--continue",
                 "--no-mtime",
                 "--extract-audio",
                 "--audio-format", "mp3",
@@ -357,6 +779,7 @@ public class Conversion implements Runnable {
     private class EventOutputStream extends ListeningOutputStream {
 
         private final ByteArrayOutputStream newlineCapture = new ByteArrayOutputStream();
+        private boolean sawOutput;
 
         public EventOutputStream(ByteArrayOutputStream cap) {
             super(cap);
@@ -364,6 +787,10 @@ public class Conversion implements Runnable {
 
         @Override
         protected void onByte(int b) {
+            if (!sawOutput) {
+                sawOutput = true;
+                mark(ConversionTimings.Stage.FIRST_OUTPUT);
+            }
             if (b == '\n' || b == '\r') {
                 // new line, new event
                 pushLine();
@@ -0,0 +1,63 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One run of a {@link Conversion}, from dequeue to its final status.
+ */
+@Name("net.octyl.ytmp3.Conversion")
+@Label("Conversion")
+@Category({"YoutubeMp3Server", "Conversion"})
+@Description("A conversion running, from leaving the queue to reaching its final status")
+class ConversionEvent extends jdk.jfr.Event {
+
+    @Label("Conversion ID")
+    String conversionId;
+
+    @Label("Store Name")
+    String storeName;
+
+    @Label("Process ID")
+    @Description("ID of the conversion process in the process manager, if one was started")
+    String processId;
+
+    @Label("Progressive")
+    boolean progressive;
+
+    @Label("Status")
+    String status;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+}
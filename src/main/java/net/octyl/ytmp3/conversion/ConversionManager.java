@@ -31,6 +31,10 @@ import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.octyl.ytmp3.conversion.videoid.VideoId;
+import net.octyl.ytmp3.conversion.videoid.VideoIdFinder;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
 import net.octyl.ytmp3.util.DiskMap;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
@@ -41,13 +45,24 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
 public class ConversionManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConversionManager.class);
@@ -81,33 +96,142 @@ public class ConversionManager {
 
         CONVERSION_MAP = new DiskMap<>(JSON, VALUE_TYPE, new HashMap<>(), Paths.get("dbs/conversion-map.db"));
         RESUBMIT_MAP = new DiskMap<>(JSON, VALUE_TYPE, new HashMap<>(), Paths.get("dbs/resubmit-map.db"));
-        // any non-finalized items here are bogus
+        migrateRenamedStores();
+        // any non-finalized items here are bogus, unless they are recovered below
         RESUBMIT_MAP.snapshot().forEach((k, v) -> {
             if (v.getStatus() != Status.SUCCESSFUL) {
                 // This is bad
                 RESUBMIT_MAP.remove(k);
             }
         });
+        recoverInterruptedConversions();
+    }
+
+    /**
+     * Records from before video IDs were kept work theirs out again on load,
+     * so URLs that are recognized now but weren't then get a new store name.
+     * The resubmit map is still keyed by the old one, so their results are
+     * moved over to the new name rather than being converted again.
+     */
+    private static void migrateRenamedStores() {
+        RESUBMIT_MAP.snapshot().forEach((storeName, conversion) -> {
+            if (storeName.equals(conversion.getStoreName()) || conversion.getStatus() != Status.SUCCESSFUL) {
+                return;
+            }
+            LOGGER.info("Moving " + storeName + " to " + conversion.getStoreName());
+            try {
+                Conversion.renameStore(storeName, conversion.getStoreName());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to move " + storeName + " to " + conversion.getStoreName(), e);
+                return;
+            }
+            RESUBMIT_MAP.remove(storeName);
+            Conversion current = CONVERSION_MAP.get(conversion.getId());
+            if (current == null) {
+                // no longer in the library, but still good for resubmits
+                conversion.refreshResult();
+                RESUBMIT_MAP.put(conversion.getStoreName(), conversion);
+                return;
+            }
+            // the stored path moves with legacy files
+            current.refreshResult();
+            refresh(current);
+        });
+    }
+
+    /**
+     * Re-submits conversions that were running when the server last stopped.
+     * Their working directories are kept, so youtube-dl resumes partial
+     * downloads instead of starting over.
+     */
+    private static void recoverInterruptedConversions() {
+        CONVERSION_MAP.snapshot().values().stream()
+            .filter(c -> c.getStatus() == Status.CREATED || c.getStatus() == Status.CONVERTING)
+            .forEach(c -> {
+                LOGGER.info("Resuming interrupted conversion " + c.getId() + " of " + c.getVideo());
+                c.setStatus(Status.CREATED);
+                submit(c);
+                refresh(c);
+            });
+    }
+
+    private static void submit(Conversion conversion) {
+        conversion.markEnqueued();
+        CONVERSION_POOL.submit(conversion);
     }
 
     private static final Lock CONVERSION_START_LOCK = new ReentrantLock();
 
-    public static Conversion newConversion(String video) {
+    private static final Counter NEW_CONVERSIONS = requests("new");
+    private static final Counter REUSED_CONVERSIONS = requests("reused");
+    private static final Counter RECONVERSIONS = requests("reconverted");
+
+    private static Counter requests(String result) {
+        return Metrics.counter("ytmp3_conversion_requests_total",
+            "Conversion requests, by whether an existing conversion could be reused", "result", result);
+    }
+
+    static {
+        Metrics.gauges("ytmp3_conversions", "Conversions currently in each status", "status",
+            ConversionManager::countByStatus);
+    }
+
+    // one pass over one snapshot, however many statuses there are
+    private static Map<String, Long> countByStatus() {
+        Map<Status, Long> counts = new EnumMap<>(Status.class);
+        for (Status status : Status.values()) {
+            counts.put(status, 0L);
+        }
+        conversions().forEach(c -> counts.merge(c.getStatus(), 1L, Long::sum));
+        Map<String, Long> byName = new LinkedHashMap<>();
+        counts.forEach((status, count) -> byName.put(status.name(), count));
+        return byName;
+    }
+    // guarded by CONVERSION_START_LOCK for writes
+    private static volatile boolean accepting = true;
+
+    /**
+     * Works out which video {@code video} is, asking the extractor if no
+     * handler recognizes it, then starts converting it unless an existing
+     * conversion can be reused.
+     *
+     * @return the conversion, or a failure with a
+     *     {@link RejectedExecutionException} if the server is shutting down
+     */
+    public static CompletableFuture<Conversion> newConversion(String video) {
+        if (!accepting) {
+            return CompletableFuture.failedFuture(
+                new RejectedExecutionException("Shutting down, not accepting new conversions"));
+        }
+        Optional<VideoId> known = VideoIdFinder.findId(video);
+        if (known.isPresent()) {
+            return CompletableFuture.completedFuture(newConversion(video, known.get()));
+        }
+        return ExtractorIdResolver.resolve(video)
+            .thenApply(resolved -> newConversion(video, resolved.orElseGet(() -> Conversion.unknownVideoId(video))));
+    }
+
+    private static Conversion newConversion(String video, VideoId videoId) {
         String id = ID.next();
-        Conversion conversion = new Conversion(id, video);
+        Conversion conversion = new Conversion(id, video, videoId);
 
         try {
             CONVERSION_START_LOCK.lock();
+            if (!accepting) {
+                throw new RejectedExecutionException("Shutting down, not accepting new conversions");
+            }
 
             // ensure that the conversion isn't already happening
             Conversion activeConversion = RESUBMIT_MAP.get(conversion.getStoreName());
             if (activeConversion != null) {
-                if (tryReuseConversion(conversion, activeConversion)) {
+                if (tryReuseConversion(activeConversion)) {
+                    REUSED_CONVERSIONS.increment();
                     return activeConversion;
                 }
             }
 
-            CONVERSION_POOL.submit(conversion);
+            NEW_CONVERSIONS.increment();
+            submit(conversion);
             refresh(conversion);
         } finally {
             CONVERSION_START_LOCK.unlock();
@@ -116,27 +240,112 @@ public class ConversionManager {
         return conversion;
     }
 
-    private static boolean tryReuseConversion(Conversion conversion, Conversion activeConversion) {
+    private static boolean tryReuseConversion(Conversion activeConversion) {
         Conversion latestConversion = getConversion(activeConversion.getId());
-        boolean notFailed = latestConversion == null || latestConversion.getStatus() != Status.FAILED;
-        if (latestConversion != null && notFailed) {
-            // re-use if not failed
+        if (latestConversion != null && latestConversion.getStatus() == Status.EVICTED) {
+            // bring it back under the same ID
+            reconvert(latestConversion);
             return true;
         }
-        // delete the file
-        try {
-            Path resultFile = activeConversion.getResultFile();
-            if (resultFile != null) {
-                Files.deleteIfExists(resultFile);
+        // re-use if not failed, disconnects between the two maps are repaired by the Reconciler
+        return latestConversion != null && latestConversion.getStatus() != Status.FAILED;
+    }
+
+    /**
+     * Runs an evicted conversion again under the same ID. Does nothing if it
+     * isn't evicted.
+     */
+    public static void reconvert(Conversion conversion) {
+        Locks.using(CONVERSION_START_LOCK, () -> {
+            if (!accepting || conversion.getStatus() != Status.EVICTED) {
+                return;
             }
-        } catch (IOException ignored) {
-        }
-        if (notFailed) {
-            // warn on disconnects between the two maps
-            LOGGER.warn("Tried to use cached conversion for " + conversion.getStoreName() + " with ID " + activeConversion.getId()
-                + " but the ID didn't exist in conversion map!");
-        }
-        return false;
+            conversion.setStatusLogged(Status.CREATED);
+            RECONVERSIONS.increment();
+            submit(conversion);
+            refresh(conversion);
+        });
+    }
+
+    /**
+     * Removes a result from storage, and marks every conversion that produced
+     * it as evicted.
+     */
+    static void evictResult(String objectName) {
+        Locks.using(CONVERSION_START_LOCK, () -> {
+            Set<String> storeNames = Conversion.getStoreNames(objectName);
+            storeNames.forEach(Conversion::remove);
+            conversions()
+                .filter(c -> storeNames.contains(c.getStoreName()) && c.getStatus() == Status.SUCCESSFUL)
+                .forEach(ConversionManager::markEvicted);
+        });
+    }
+
+    private static void markEvicted(Conversion conversion) {
+        conversion.clearResult();
+        conversion.setStatusLogged(Status.EVICTED);
+        refresh(conversion);
+        LibraryFeed.conversionRemoved(conversion.getId());
+    }
+
+    /**
+     * Drops re-submission entries whose conversion is gone or failed, brings
+     * result metadata up to date, and marks successful conversions whose
+     * result disappeared as evicted.
+     */
+    static void reconcileMaps(Reconciler.Report report) {
+        Locks.using(CONVERSION_START_LOCK, () -> {
+            RESUBMIT_MAP.snapshot().forEach((storeName, resubmit) -> {
+                Conversion latest = getConversion(resubmit.getId());
+                if (latest == null || latest.getStatus() == Status.FAILED) {
+                    RESUBMIT_MAP.remove(storeName);
+                    report.danglingResubmits.increment();
+                }
+            });
+            conversions()
+                .filter(c -> c.getStatus() == Status.SUCCESSFUL)
+                .forEach(c -> {
+                    if (!c.refreshResult()) {
+                        return;
+                    }
+                    if (c.getResult() == null) {
+                        markEvicted(c);
+                        report.missingResults.increment();
+                    } else {
+                        refresh(c);
+                        report.refreshedResults.increment();
+                    }
+                });
+        });
+    }
+
+    /**
+     * @return the store names of conversions that haven't finished yet
+     */
+    static Set<String> getActiveStoreNames() {
+        return activeConversions().map(Conversion::getStoreName).collect(toImmutableSet());
+    }
+
+    /**
+     * Taken under the start lock, so any conversion that was submitted before
+     * this call, and so may already have a working directory, is included.
+     *
+     * @return the IDs of conversions that haven't finished yet
+     */
+    static Set<String> getActiveIds() {
+        return Locks.using(CONVERSION_START_LOCK,
+            () -> activeConversions().map(Conversion::getId).collect(toImmutableSet()));
+    }
+
+    /**
+     * @return how many conversions haven't finished yet
+     */
+    public static long getActiveCount() {
+        return activeConversions().count();
+    }
+
+    private static Stream<Conversion> activeConversions() {
+        return conversions().filter(c -> c.getStatus() == Status.CREATED || c.getStatus() == Status.CONVERTING);
     }
 
     @Nullable
@@ -149,9 +358,63 @@ public class ConversionManager {
         if (conversion != null) {
             RESUBMIT_MAP.remove(conversion.getStoreName());
             Conversion.remove(conversion.getStoreName());
+            if (conversion.getStatus() == Status.SUCCESSFUL) {
+                LibraryFeed.conversionRemoved(id);
+            }
         }
     }
 
+    public static boolean isAccepting() {
+        return accepting;
+    }
+
+    public enum DrainResult {
+        /**
+         * Every conversion finished in time.
+         */
+        FINISHED,
+        /**
+         * Some conversions were killed, and have recorded their state to
+         * resume on the next start.
+         */
+        CHECKPOINTED,
+        /**
+         * Some conversions were killed but haven't stopped yet, so they may
+         * still be writing to the stores.
+         */
+        STILL_RUNNING,
+    }
+
+    /**
+     * Stops accepting conversions and waits up to {@code deadline} for the
+     * running ones to finish. Those still running afterwards have their
+     * processes killed, and are left as they are so they resume on the next
+     * start.
+     */
+    public static DrainResult drain(Duration deadline) throws InterruptedException {
+        Locks.using(CONVERSION_START_LOCK, () -> {
+            accepting = false;
+            CONVERSION_POOL.shutdown();
+        });
+        if (CONVERSION_POOL.awaitTermination(deadline.toMillis(), TimeUnit.MILLISECONDS)) {
+            return DrainResult.FINISHED;
+        }
+        activeConversions().forEach(Conversion::checkpoint);
+        // give them a moment to notice and record their state
+        if (CONVERSION_POOL.awaitTermination(5, TimeUnit.SECONDS)) {
+            return DrainResult.CHECKPOINTED;
+        }
+        return DrainResult.STILL_RUNNING;
+    }
+
+    /**
+     * Writes both maps out, in case anything changed without a put.
+     */
+    public static void flush() {
+        CONVERSION_MAP.write();
+        RESUBMIT_MAP.write();
+    }
+
     public static void refresh(Conversion conversion) {
         CONVERSION_MAP.put(conversion.getId(), conversion);
         // we can also store the video ID tag for checking re-submission
@@ -0,0 +1,151 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.metrics.Summary;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic timestamps of the stages of one run of a conversion. Each stage
+ * is reported relative to {@link Stage#ENQUEUED}, and as the time it took
+ * since the stage before it.
+ */
+public final class ConversionTimings {
+
+    public enum Stage {
+        ENQUEUED,
+        STARTED,
+        PROCESS_STARTED,
+        FIRST_OUTPUT,
+        PROCESS_EXITED,
+        FILE_MOVED,
+        COMMITTED,
+        FINISHED;
+
+        private final String key = CaseFormat.UPPER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, name());
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final Map<Stage, Summary> STAGE_TIMES = Maps.toMap(EnumSet.allOf(Stage.class),
+        stage -> Metrics.summary("ytmp3_conversion_stage_seconds",
+            "Time from the previous conversion stage to this one", 1e-9,
+            "stage", CaseFormat.UPPER_UNDERSCORE.to(CaseFormat.LOWER_UNDERSCORE, stage.name())));
+    private static final Summary TOTAL_TIME = Metrics.summary("ytmp3_conversion_seconds",
+        "Time from enqueueing a conversion until it finished", 1e-9);
+
+    private final AtomicLongArray marks = new AtomicLongArray(Stage.values().length);
+
+    ConversionTimings() {
+        for (int i = 0; i < marks.length(); i++) {
+            marks.set(i, UNSET);
+        }
+        marks.set(Stage.ENQUEUED.ordinal(), System.nanoTime());
+    }
+
+    /**
+     * Records that {@code stage} was reached now. Only the first time counts.
+     */
+    void mark(Stage stage) {
+        long now = System.nanoTime();
+        if (!marks.compareAndSet(stage.ordinal(), UNSET, now)) {
+            return;
+        }
+        long previous = previousMark(stage);
+        if (previous != UNSET) {
+            STAGE_TIMES.get(stage).record(now - previous);
+        }
+        if (stage == Stage.FINISHED) {
+            TOTAL_TIME.record(now - marks.get(Stage.ENQUEUED.ordinal()));
+        }
+    }
+
+    boolean isMarked(Stage stage) {
+        return marks.get(stage.ordinal()) != UNSET;
+    }
+
+    private long previousMark(Stage stage) {
+        for (int i = stage.ordinal() - 1; i >= 0; i--) {
+            long mark = marks.get(i);
+            if (mark != UNSET) {
+                return mark;
+            }
+        }
+        return UNSET;
+    }
+
+    /**
+     * @return for each stage reached so far, {@code atMillis} since enqueueing
+     *     and {@code tookMillis} since the stage before it
+     */
+    public Map<String, Object> toMap() {
+        ImmutableMap.Builder<String, Object> result = ImmutableMap.builder();
+        long enqueued = marks.get(Stage.ENQUEUED.ordinal());
+        for (Stage stage : Stage.values()) {
+            long mark = marks.get(stage.ordinal());
+            if (mark == UNSET) {
+                continue;
+            }
+            long previous = previousMark(stage);
+            result.put(stage.getKey(), ImmutableMap.of(
+                "atMillis", toMillis(mark - enqueued),
+                "tookMillis", toMillis(previous == UNSET ? 0 : mark - previous)));
+        }
+        return result.build();
+    }
+
+    String toJson() {
+        ObjectNode node = JSON.valueToTree(toMap());
+        return node.toString();
+    }
+
+    /**
+     * Reads back what {@link #toJson()} wrote, e.g. in a {@code timings} event.
+     */
+    static Map<String, Object> fromJson(String json) throws JsonProcessingException {
+        return JSON.readValue(json, new TypeReference<Map<String, Object>>() {
+        });
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
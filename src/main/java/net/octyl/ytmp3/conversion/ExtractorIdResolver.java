@@ -0,0 +1,300 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import net.octyl.ytmp3.conversion.videoid.UrlNormalizer;
+import net.octyl.ytmp3.conversion.videoid.VideoId;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.util.Config;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the video behind URLs that no
+ * {@link net.octyl.ytmp3.conversion.videoid.VideoHandler} recognizes, by asking
+ * youtube-dl for the extractor and ID it would use.
+ *
+ * <p>
+ * Answers are cached in {@code dbs/extractor-ids.db} by normalized URL, so a
+ * URL is only looked up once per {@code extractor_cache_ttl_hours}. URLs the
+ * extractor definitely can't place are remembered for
+ * {@code extractor_negative_ttl_minutes}, so repeated submissions don't each
+ * start youtube-dl. Timeouts and other failures aren't remembered, as the
+ * next try may well work. Expired answers are
+ * purged at startup and then at most hourly. The generic extractor is not
+ * trusted, as its IDs are just file names.
+ * </p>
+ */
+public class ExtractorIdResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExtractorIdResolver.class);
+
+    private static final PropOrEnvConfigOption<Integer> TTL_HOURS =
+        Config.NAMESPACE.create("extractor_cache_ttl_hours", Loaders.forIntInRange(1, Integer.MAX_VALUE), 24 * 7);
+    private static final PropOrEnvConfigOption<Integer> NEGATIVE_TTL_MINUTES =
+        Config.NAMESPACE.create("extractor_negative_ttl_minutes", Loaders.forIntInRange(1, Integer.MAX_VALUE), 10);
+    private static final PropOrEnvConfigOption<Integer> TIMEOUT_SECONDS =
+        Config.NAMESPACE.create("extractor_timeout_seconds", Loaders.forIntInRange(1, 600), 30);
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(4,
+        new ThreadFactoryBuilder().setNameFormat("extractor-resolver-%d").setDaemon(true).build());
+
+    // closed by the ShutdownCoordinator
+    private static final DB ID_RECORDS = DBMaker
+        .fileDB("dbs/extractor-ids.db")
+        .fileMmapEnableIfSupported()
+        .make();
+    // normalized URL -> "expiresAtMillis:provider:id", or "expiresAtMillis::" if unresolved
+    private static final HTreeMap<String, String> ID_CACHE =
+        ID_RECORDS
+            .hashMap("ids")
+            .keySerializer(Serializer.STRING)
+            .valueSerializer(Serializer.STRING)
+            .createOrOpen();
+    private static final Map<String, CompletableFuture<Optional<VideoId>>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static final long PURGE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final AtomicLong LAST_PURGE = new AtomicLong();
+
+    static {
+        purgeExpired();
+    }
+
+    private static final Counter CACHED = lookups("cached");
+    private static final Counter RESOLVED = lookups("resolved");
+    private static final Counter UNRESOLVED = lookups("unresolved");
+
+    private static Counter lookups(String result) {
+        return Metrics.counter("ytmp3_extractor_lookups_total",
+            "Video IDs looked up through the extractor, by outcome", "result", result);
+    }
+
+    /**
+     * @return the cached answer for {@code video}, without starting a lookup
+     */
+    public static Optional<VideoId> getCached(String video) {
+        return cacheKey(video).flatMap(ExtractorIdResolver::getCachedByKey);
+    }
+
+    /**
+     * Looks up {@code video} in the background, if it isn't cached. Lookups of
+     * the same URL at the same time share one youtube-dl run.
+     *
+     * @return the video, or empty if the extractor doesn't know it
+     */
+    public static CompletableFuture<Optional<VideoId>> resolve(String video) {
+        Optional<String> key = cacheKey(video);
+        if (key.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        String @Nullable [] cached = getLiveEntry(key.get());
+        if (cached != null) {
+            CACHED.increment();
+            return CompletableFuture.completedFuture(toVideoId(cached));
+        }
+        CompletableFuture<Optional<VideoId>> pending = new CompletableFuture<>();
+        CompletableFuture<Optional<VideoId>> existing = IN_FLIGHT.putIfAbsent(key.get(), pending);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            POOL.execute(() -> {
+                try {
+                    pending.complete(lookup(key.get(), video));
+                } catch (Throwable t) {
+                    pending.completeExceptionally(t);
+                } finally {
+                    IN_FLIGHT.remove(key.get(), pending);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            IN_FLIGHT.remove(key.get(), pending);
+            pending.completeExceptionally(e);
+        }
+        return pending;
+    }
+
+    /**
+     * Stops lookups and closes the cache, as part of shutdown. Lookups that
+     * haven't finished fail with a {@link RejectedExecutionException}, so
+     * nobody waits on a task that will never run.
+     */
+    public static void close() {
+        POOL.shutdownNow();
+        var shuttingDown = new RejectedExecutionException("Shutting down, not looking up videos");
+        IN_FLIGHT.values().forEach(pending -> pending.completeExceptionally(shuttingDown));
+        ID_RECORDS.close();
+    }
+
+    private static Optional<String> cacheKey(String video) {
+        return UrlNormalizer.normalize(video).map(URI::toString);
+    }
+
+    private static Optional<VideoId> getCachedByKey(String key) {
+        String @Nullable [] cached = getLiveEntry(key);
+        return cached == null ? Optional.empty() : toVideoId(cached);
+    }
+
+    /**
+     * @return the unexpired entry for {@code key}, split into its parts, or
+     *     {@code null} if there isn't one
+     */
+    private static String @Nullable [] getLiveEntry(String key) {
+        String cached = ID_CACHE.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (isExpired(cached)) {
+            ID_CACHE.remove(key, cached);
+            return null;
+        }
+        return cached.split(":", 3);
+    }
+
+    private static Optional<VideoId> toVideoId(String[] entry) {
+        // unresolved URLs are cached with no provider
+        if (entry[1].isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new VideoId(entry[1], entry[2]));
+    }
+
+    private static boolean isExpired(String entry) {
+        String[] parts = entry.split(":", 3);
+        return parts.length != 3 || Long.parseLong(parts[0]) < System.currentTimeMillis();
+    }
+
+    private static void purgeExpired() {
+        LAST_PURGE.set(System.currentTimeMillis());
+        if (ID_CACHE.values().removeIf(ExtractorIdResolver::isExpired)) {
+            ID_RECORDS.commit();
+        }
+    }
+
+    private static Optional<VideoId> lookup(String key, String video) {
+        Optional<VideoId> result;
+        try {
+            result = askExtractor(video);
+        } catch (IOException e) {
+            // likely transient, so it isn't cached
+            LOGGER.warn("Unable to look up " + video, e);
+            UNRESOLVED.increment();
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            // shutting down, which says nothing about the URL
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+        long now = System.currentTimeMillis();
+        if (now - LAST_PURGE.get() >= PURGE_INTERVAL_MILLIS) {
+            purgeExpired();
+        }
+        if (result.isEmpty()) {
+            UNRESOLVED.increment();
+            long expiresAt = now + TimeUnit.MINUTES.toMillis(NEGATIVE_TTL_MINUTES.get());
+            ID_CACHE.put(key, expiresAt + "::");
+        } else {
+            RESOLVED.increment();
+            long expiresAt = now + TimeUnit.HOURS.toMillis(TTL_HOURS.get());
+            ID_CACHE.put(key, expiresAt + ":" + result.get().getProvider() + ":" + result.get().getId());
+        }
+        ID_RECORDS.commit();
+        return result;
+    }
+
+    /**
+     * @return the video, or empty if the extractor definitely doesn't know it
+     * @throws IOException if the extractor couldn't give an answer, e.g. it
+     *     timed out
+     */
+    private static Optional<VideoId> askExtractor(String video) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(Conversion.getYoutubeDl(),
+            "--no-playlist",
+            "--get-filename",
+            "--output", "%(extractor_key)s/%(id)s", video)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        String line;
+        try {
+            // the output is one short line, so it can't fill the pipe while we wait
+            if (!process.waitFor(TIMEOUT_SECONDS.get(), TimeUnit.SECONDS)) {
+                throw new IOException("Timed out after " + TIMEOUT_SECONDS.get() + "s");
+            }
+            try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                line = reader.readLine();
+            }
+        } finally {
+            // also when shutdown interrupts us, so no lookup outlives the server
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+        if (Strings.isNullOrEmpty(line)) {
+            if (process.exitValue() != 0) {
+                // youtube-dl has no extractor for it
+                return Optional.empty();
+            }
+            throw new IOException("No output, but exit code 0");
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("Exit code " + process.exitValue());
+        }
+        int slash = line.indexOf('/');
+        if (slash <= 0 || slash == line.length() - 1) {
+            throw new IOException("Unexpected output '" + line + "'");
+        }
+        String provider = Ascii.toLowerCase(line.substring(0, slash));
+        if (provider.equals("generic")) {
+            return Optional.empty();
+        }
+        return Optional.of(new VideoId(provider, line.substring(slash + 1)));
+    }
+
+}
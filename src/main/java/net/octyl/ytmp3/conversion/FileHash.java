@@ -25,29 +25,141 @@
 
 package net.octyl.ytmp3.conversion;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import net.octyl.ytmp3.util.Config;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
+/**
+ * SHA-256 hashing of files.
+ *
+ * <p>
+ * Files are read through a reused direct buffer per thread, not mapped, as a
+ * live mapping stops the file from being moved on Windows and mappings are
+ * only released by the garbage collector. The result is remembered
+ * against the file's size and modification time, so an unchanged file is only
+ * ever hashed once. The asynchronous variants run on a small pool of
+ * low-priority threads, to keep large files off request paths.
+ * </p>
+ */
 public class FileHash {
 
-    private static final int CHUNK_SIZE = 4096;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static final PropOrEnvConfigOption<Integer> THREADS =
+        Config.NAMESPACE.create("hash_threads", Loaders.forIntInRange(1, 64),
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS.get(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("file-hasher-%d")
+            .setDaemon(true)
+            .setPriority(Thread.MIN_PRIORITY)
+            .build());
+
+    // closed by the ShutdownCoordinator
+    private static final DB HASH_RECORDS = DBMaker
+        .fileDB("dbs/file-hashes.db")
+        .fileMmapEnableIfSupported()
+        .make();
+    // absolute path -> "size:mtime:hash"
+    private static final HTreeMap<String, String> HASH_CACHE =
+        HASH_RECORDS
+            .hashMap("hashes")
+            .keySerializer(Serializer.STRING)
+            .valueSerializer(Serializer.STRING)
+            .createOrOpen();
 
     public static String create(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        String key = file.toAbsolutePath().normalize().toString();
+        String validator = attributes.size() + ":" + attributes.lastModifiedTime().toMillis() + ":";
+        String cached = HASH_CACHE.get(key);
+        if (cached != null && cached.startsWith(validator)) {
+            return cached.substring(validator.length());
+        }
+        String hash = hash(file);
+        HASH_CACHE.put(key, validator + hash);
+        HASH_RECORDS.commit();
+        return hash;
+    }
+
+    /**
+     * Hashes {@code file} on the background pool.
+     */
+    public static CompletableFuture<String> createAsync(Path file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return create(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, POOL);
+    }
+
+    /**
+     * Hashes all of {@code files} in parallel on the background pool. Files
+     * that can't be read are left out of the result.
+     */
+    public static CompletableFuture<ImmutableMap<Path, String>> createAll(Collection<Path> files) {
+        List<CompletableFuture<ImmutableMap<Path, String>>> hashes = files.stream()
+            .map(file -> createAsync(file)
+                .thenApply(hash -> ImmutableMap.of(file, hash))
+                .exceptionally(e -> ImmutableMap.of()))
+            .collect(Collectors.toList());
+        return CompletableFuture.allOf(hashes.toArray(CompletableFuture[]::new))
+            .thenApply(ignored -> {
+                ImmutableMap.Builder<Path, String> result = ImmutableMap.builder();
+                hashes.forEach(hash -> result.putAll(hash.join()));
+                return result.build();
+            });
+    }
+
+    /**
+     * Forgets the cached hash of {@code file}, e.g. because it was deleted.
+     */
+    public static void forget(Path file) {
+        if (HASH_CACHE.remove(file.toAbsolutePath().normalize().toString()) != null) {
+            HASH_RECORDS.commit();
+        }
+    }
+
+    /**
+     * Stops hashing and closes the cache, as part of shutdown.
+     */
+    public static void close() {
+        POOL.shutdownNow();
+        HASH_RECORDS.close();
+    }
+
+    private static String hash(Path file) throws IOException {
         Hasher hasher = Hashing.sha256().newHasher();
-        try (InputStream stream = Files.newInputStream(file)) {
-            byte[] buffer = new byte[CHUNK_SIZE];
-            while (stream.available() != -1) {
-                int read = stream.read(buffer);
-                if (read == -1) {
-                    break;
-                }
-
-                hasher.putBytes(buffer, 0, read);
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) != -1) {
+                hasher.putBytes(buffer.flip());
             }
         }
         return hasher.hash().toString();
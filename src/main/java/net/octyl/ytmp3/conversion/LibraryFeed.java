@@ -0,0 +1,129 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import com.techshroom.lettar.addons.sse.ServerSentEvent;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import net.octyl.ytmp3.util.Config;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Feed of changes to the library, i.e. the successful conversions listed by
+ * {@code GET /mp3ify}.
+ *
+ * <p>
+ * Every change gets the next sequence number, which is also its event ID.
+ * Only the most recent changes are retained, so a subscriber that is too far
+ * behind (or that remembers a sequence number from a previous run) is told to
+ * reset and re-fetch the list instead.
+ * </p>
+ */
+public class LibraryFeed {
+
+    private static final PropOrEnvConfigOption<Integer> RETAINED =
+        Config.NAMESPACE.create("library_feed_size", Loaders.forIntInRange(1, 1 << 20), 1024);
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final Lock LOCK = new ReentrantLock();
+    private static final ObservableList<ServerSentEvent> EVENTS = FXCollections.observableList(new CopyOnWriteArrayList<>());
+    // Start from the clock so sequence numbers from a previous run are always behind this one
+    private static long firstSequence = System.currentTimeMillis();
+    private static long nextSequence = firstSequence;
+
+    static void conversionAdded(Conversion conversion) {
+        ObjectNode data = JSON.createObjectNode();
+        data.put("id", conversion.getId());
+        data.put("name", conversion.getFileName());
+        data.put("endTime", conversion.getEndTime().toMillis());
+        publish("added", data);
+    }
+
+    static void conversionRemoved(String id) {
+        ObjectNode data = JSON.createObjectNode();
+        data.put("id", id);
+        publish("removed", data);
+    }
+
+    private static void publish(String type, ObjectNode data) {
+        Locks.using(LOCK, () -> {
+            EVENTS.add(ServerSentEvent.of(type, String.valueOf(nextSequence), data.toString()));
+            nextSequence++;
+            int retained = RETAINED.get();
+            if (EVENTS.size() >= retained * 2) {
+                int trim = EVENTS.size() - retained;
+                EVENTS.remove(0, trim);
+                firstSequence += trim;
+            }
+        });
+    }
+
+    /**
+     * @return the sequence number of the latest change, which a list snapshot
+     *     taken after this call is guaranteed to include
+     */
+    public static long currentSequence() {
+        return Locks.using(LOCK, () -> nextSequence - 1);
+    }
+
+    /**
+     * Hands the event list and the number of events to skip to
+     * {@code subscriber}, so that it receives every change after
+     * {@code since}. No changes are published while the subscriber runs.
+     *
+     * @return {@code false} if the changes after {@code since} are no longer
+     *     available, in which case nothing is passed to the subscriber
+     */
+    public static boolean subscribe(long since, ObjIntConsumer<ObservableList<ServerSentEvent>> subscriber) {
+        return Locks.using(LOCK, () -> {
+            if (since < firstSequence - 1 || since >= nextSequence) {
+                return false;
+            }
+            subscriber.accept(EVENTS, (int) (since + 1 - firstSequence));
+            return true;
+        });
+    }
+
+    /**
+     * Like {@link #subscribe(long, ObjIntConsumer)}, but only for changes
+     * published from now on.
+     */
+    public static void subscribeToNew(ObjIntConsumer<ObservableList<ServerSentEvent>> subscriber) {
+        Locks.using(LOCK, () -> subscriber.accept(EVENTS, EVENTS.size()));
+    }
+
+    private LibraryFeed() {
+    }
+
+}
@@ -29,9 +29,12 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.File;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -42,6 +45,7 @@ import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 import java.util.stream.StreamSupport;
 
@@ -59,6 +63,13 @@ public class ProcessManager {
         new ProcessMapReaper().start();
     }
 
+    private static final Counter PROCESSES_STARTED = Metrics.counter("ytmp3_processes_started_total",
+        "External processes started");
+
+    static {
+        Metrics.gauge("ytmp3_processes_running", "External processes still running", RUNNING_PROCESSES::size);
+    }
+
     private static final List<String> PATHEXT;
     private static final List<Path> PATH;
 
@@ -89,19 +100,48 @@ public class ProcessManager {
     }
 
     public static String startProcess(Supplier<Process> constructor, OutputStream outputAcceptor) {
+        ProcessStartEvent event = new ProcessStartEvent();
+        event.begin();
         Process p = constructor.get();
-        String id = ID.next();
-        RUNNING_PROCESSES.put(id, p);
+        String id = track(p);
+        event.end();
+        if (event.shouldCommit()) {
+            event.processId = id;
+            event.pid = p.pid();
+            event.command = p.info().commandLine().orElse(null);
+            event.commit();
+        }
 
         // Begin cross-writing
-        outputTransferrer.submit(() -> {
-            try (OutputStream tmp = outputAcceptor) {
-                ByteStreams.copy(p.getInputStream(), tmp);
+        transfer(p.getInputStream(), outputAcceptor);
+
+        return id;
+    }
+
+    /**
+     * Registers an already started process, so it can be found by the returned
+     * ID until it exits.
+     */
+    public static String track(Process process) {
+        String id = ID.next();
+        RUNNING_PROCESSES.put(id, process);
+        PROCESSES_STARTED.increment();
+        return id;
+    }
+
+    /**
+     * Copies {@code source} to {@code sink} in the background, closing
+     * {@code sink} afterwards.
+     *
+     * @return a future that completes once everything has been copied
+     */
+    public static Future<?> transfer(InputStream source, OutputStream sink) {
+        return outputTransferrer.submit(() -> {
+            try (OutputStream tmp = sink) {
+                ByteStreams.copy(source, tmp);
             }
             return null;
         });
-
-        return id;
     }
 
     @Nullable
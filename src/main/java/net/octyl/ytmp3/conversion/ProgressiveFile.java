@@ -0,0 +1,159 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A result file that is still being written. Readers can tail it, and are told
+ * whenever data is appended or the file is finished.
+ *
+ * <p>
+ * Once written, the file is moved into the store before the conversion is
+ * marked successful. Readers must open it with {@link #openReader()}, which
+ * follows it there.
+ * </p>
+ */
+public class ProgressiveFile {
+
+    // only changed under this lock, once, when the file is stored
+    private volatile Path path;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile long length;
+    private volatile boolean finished;
+    private volatile boolean successful;
+
+    public ProgressiveFile(Path path) {
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Opens the file for reading, from wherever it is now. If it is being
+     * moved, this waits for the move, so it never looks where the file used to
+     * be.
+     */
+    public synchronized FileChannel openReader() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * Moves the written file with {@code mover}, and sends readers that open
+     * it afterwards to where it went. Readers that already have it open keep
+     * reading it.
+     *
+     * @return the new location
+     */
+    public synchronized Path moveWith(Mover mover) throws IOException {
+        path = mover.move(path);
+        return path;
+    }
+
+    /**
+     * @return the number of bytes that are safe to read
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * Registers a listener that runs on the writing thread after every append,
+     * and once more when the file is finished. It must not block.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    OutputStream openOutput() throws IOException {
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                length += len;
+                notifyListeners();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    void finish(boolean successful) {
+        this.successful = successful;
+        this.finished = true;
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        listeners.forEach(Runnable::run);
+    }
+
+    public interface Mover {
+
+        /**
+         * @return where {@code file} is now
+         */
+        Path move(Path file) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import net.octyl.ytmp3.util.Config;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Periodically brings the conversion maps, the video ID records, the content
+ * store and the working directories back in line with each other.
+ *
+ * <p>
+ * Runs on low-priority threads, so none of these checks have to be made on
+ * the request path. The first run also migrates legacy results and verifies
+ * the content store.
+ * </p>
+ */
+public class Reconciler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reconciler.class);
+
+    // 0 means only once, at startup
+    private static final PropOrEnvConfigOption<Integer> INTERVAL_MINUTES =
+        Config.NAMESPACE.create("reconcile_interval_minutes", Loaders.forIntInRange(0, 7 * 24 * 60), 60);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("reconciler-scheduler-%d").setDaemon(true).build());
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+        Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+        new ThreadFactoryBuilder()
+            .setNameFormat("reconciler-%d")
+            .setDaemon(true)
+            .setPriority(Thread.MIN_PRIORITY)
+            .build());
+
+    /**
+     * What a single run fixed.
+     */
+    public static final class Report {
+        final LongAdder migratedResults = new LongAdder();
+        final LongAdder corruptObjects = new LongAdder();
+        final LongAdder danglingResubmits = new LongAdder();
+        final LongAdder missingResults = new LongAdder();
+        final LongAdder refreshedResults = new LongAdder();
+        final LongAdder danglingRecords = new LongAdder();
+        final LongAdder danglingNames = new LongAdder();
+        final LongAdder repairedReferences = new LongAdder();
+        final LongAdder orphanObjects = new LongAdder();
+        final LongAdder orphanWorkingDirs = new LongAdder();
+        private final long startedAt = System.currentTimeMillis();
+        private volatile long duration;
+
+        public ImmutableMap<String, Object> toMap() {
+            return ImmutableMap.<String, Object>builder()
+                .put("startedAt", startedAt)
+                .put("durationMillis", duration)
+                .put("migratedResults", migratedResults.sum())
+                .put("corruptObjects", corruptObjects.sum())
+                .put("danglingResubmits", danglingResubmits.sum())
+                .put("missingResults", missingResults.sum())
+                .put("refreshedResults", refreshedResults.sum())
+                .put("danglingRecords", danglingRecords.sum())
+                .put("danglingNames", danglingNames.sum())
+                .put("repairedReferences", repairedReferences.sum())
+                .put("orphanObjects", orphanObjects.sum())
+                .put("orphanWorkingDirs", orphanWorkingDirs.sum())
+                .build();
+        }
+    }
+
+    @Nullable
+    private static volatile Report lastReport;
+
+    public static void start() {
+        SCHEDULER.execute(() -> runSafely(true));
+        int interval = INTERVAL_MINUTES.get();
+        if (interval > 0) {
+            SCHEDULER.scheduleWithFixedDelay(() -> runSafely(false), interval, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * @return the report of the last completed run, if there was one
+     */
+    @Nullable
+    public static Report getLastReport() {
+        return lastReport;
+    }
+
+    private static void runSafely(boolean startup) {
+        try {
+            Report report = reconcile(startup);
+            lastReport = report;
+            LOGGER.info("Reconciled storage: " + report.toMap());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to reconcile storage", e);
+        }
+    }
+
+    private static Report reconcile(boolean startup) {
+        Report report = new Report();
+        ContentStore store = Conversion.getContentStore();
+        if (startup) {
+            report.migratedResults.add(store.migrateLegacyFiles());
+            report.migratedResults.add(store.migrateFlatObjects());
+            Conversion.commitRecords();
+        }
+
+        // the independent walks run in parallel, the content store goes last as it relies on the others
+        CompletableFuture<Set<String>> corrupt = CompletableFuture.supplyAsync(store::verifyObjects, POOL);
+        CompletableFuture<Void> maps = CompletableFuture.runAsync(() -> ConversionManager.reconcileMaps(report), POOL);
+        CompletableFuture<Void> workingDirs = CompletableFuture.runAsync(() -> cleanWorkingDirs(report), POOL);
+        CompletableFuture.allOf(corrupt, maps, workingDirs).join();
+
+        for (String objectName : corrupt.join()) {
+            // re-converted on the next request, like any other eviction
+            ConversionManager.evictResult(objectName);
+            report.corruptObjects.increment();
+        }
+
+        // taken first, so anything that starts converting after the snapshot below is recognized as new
+        long generation = store.getLinkGeneration();
+        Set<String> active = ConversionManager.getActiveStoreNames();
+        for (String storeName : Conversion.getRecordedStoreNames()) {
+            if (!active.contains(storeName) && !Conversion.hasResult(storeName)
+                && !store.linkedSince(storeName, generation)) {
+                Conversion.remove(storeName);
+                report.danglingRecords.increment();
+            }
+        }
+        Set<String> live = Sets.union(Conversion.getRecordedStoreNames(), active);
+        try {
+            store.reconcile(live, generation, report);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            Conversion.commitRecords();
+        }
+
+        report.duration = System.currentTimeMillis() - report.startedAt;
+        return report;
+    }
+
+    private static void cleanWorkingDirs(Report report) {
+        // listed first, so every directory here belongs to a conversion that is already in the snapshot below
+        List<Path> dirs = listDirectories(Conversion.getWorkingRoot());
+        Set<String> active = ConversionManager.getActiveIds();
+        for (Path dir : dirs) {
+            if (!active.contains(dir.getFileName().toString())) {
+                deleteWorkingDir(dir, report);
+            }
+        }
+    }
+
+    private static List<Path> listDirectories(Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(Files::isDirectory).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteWorkingDir(Path dir, Report report) {
+        try {
+            MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+            report.orphanWorkingDirs.increment();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete working directory " + dir, e);
+        }
+    }
+
+    private Reconciler() {
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.util.Config;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps popular result files in off-heap buffers, keyed by object name, see {@link ContentStore}.
+ *
+ * <p>
+ * Caffeine's W-TinyLFU policy decides what stays, so a file has to be
+ * requested often enough to push out what is already cached. Files are only
+ * ever loaded in the background after a second miss, never on the request
+ * path, so files downloaded once are never read into memory.
+ * </p>
+ */
+public class ResultCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+    private static final PropOrEnvConfigOption<Integer> SIZE_MB =
+        Config.NAMESPACE.create("cache_size_mb", Loaders.forIntInRange(0, Integer.MAX_VALUE), 256);
+    private static final PropOrEnvConfigOption<Integer> MAX_FILE_MB =
+        Config.NAMESPACE.create("cache_max_file_mb", Loaders.forIntInRange(0, 2047), 32);
+
+    private static final long CACHE_SIZE = SIZE_MB.get() * 1024L * 1024L;
+    private static final long MAX_FILE_SIZE = Math.min(MAX_FILE_MB.get() * 1024L * 1024L, CACHE_SIZE);
+    private static final Cache<String, ByteBuf> CACHE = Caffeine.newBuilder()
+        .maximumWeight(CACHE_SIZE)
+        .<String, ByteBuf>weigher((objectName, buffer) -> buffer.capacity())
+        .removalListener((objectName, buffer, cause) -> {
+            if (buffer != null) {
+                buffer.release();
+            }
+        })
+        .recordStats()
+        .build();
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("result-cache-loader-%d").setDaemon(true).build());
+    private static final Map<String, Boolean> PENDING = new ConcurrentHashMap<>();
+    // object names that missed once, loaded if they miss again
+    private static final Cache<String, Boolean> MISSED_ONCE = Caffeine.newBuilder()
+        .maximumSize(4096)
+        .build();
+
+    static {
+        Metrics.gauge("ytmp3_result_cache_hit_ratio", "Fraction of downloads served from memory",
+            () -> stats().hitRate());
+        Metrics.gauge("ytmp3_result_cache_entries", "Results held in memory", ResultCache::entryCount);
+        Metrics.gauge("ytmp3_result_cache_bytes", "Bytes of results held in memory", ResultCache::weightBytes);
+    }
+
+    /**
+     * @return a retained, read-only view of the cached file, which the caller
+     *     must release, or {@code null} if it isn't cached
+     */
+    @Nullable
+    public static ByteBuf get(String objectName) {
+        ByteBuf buffer = CACHE.getIfPresent(objectName);
+        if (buffer == null) {
+            return null;
+        }
+        try {
+            return buffer.retainedDuplicate().asReadOnly();
+        } catch (IllegalReferenceCountException e) {
+            // evicted and released while we were looking
+            return null;
+        }
+    }
+
+    /**
+     * Loads {@code file} into the cache in the background if this is its
+     * second miss. The cache may still decide not to keep it.
+     */
+    public static void offer(String objectName, Path file, long size) {
+        if (size == 0 || size > MAX_FILE_SIZE) {
+            return;
+        }
+        if (MISSED_ONCE.asMap().putIfAbsent(objectName, Boolean.TRUE) == null) {
+            return;
+        }
+        if (PENDING.putIfAbsent(objectName, Boolean.TRUE) != null) {
+            return;
+        }
+        LOADER.execute(() -> {
+            try {
+                // not CACHE.get, get() has already counted this miss
+                CACHE.asMap().computeIfAbsent(objectName, k -> load(file, size));
+                MISSED_ONCE.invalidate(objectName);
+            } catch (UncheckedIOException e) {
+                LOGGER.warn("Unable to cache " + file, e);
+            } finally {
+                PENDING.remove(objectName);
+            }
+        });
+    }
+
+    private static ByteBuf load(Path file, long size) {
+        ByteBuf buffer = ByteBufAllocator.DEFAULT.directBuffer((int) size, (int) size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.isWritable()) {
+                if (buffer.writeBytes(channel, buffer.writerIndex(), buffer.writableBytes()) == -1) {
+                    throw new IOException("File shrank while caching it");
+                }
+            }
+            return buffer;
+        } catch (IOException e) {
+            buffer.release();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void invalidate(String objectName) {
+        CACHE.invalidate(objectName);
+        MISSED_ONCE.invalidate(objectName);
+    }
+
+    public static CacheStats stats() {
+        return CACHE.stats();
+    }
+
+    public static long entryCount() {
+        return CACHE.estimatedSize();
+    }
+
+    public static long weightBytes() {
+        return CACHE.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L);
+    }
+
+    private ResultCache() {
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Everything about a result that would otherwise need the file system,
+ * recorded once when the conversion completes.
+ */
+public final class ResultMetadata {
+
+    static ResultMetadata record(Path file, @Nullable String contentHash, long completedAt) throws IOException {
+        return new ResultMetadata(file.toString(), Files.size(file), completedAt, contentHash);
+    }
+
+    private final String path;
+    private final long size;
+    private final long completedAt;
+    @Nullable
+    private final String contentHash;
+
+    @JsonCreator
+    public ResultMetadata(@JsonProperty("path") String path,
+                          @JsonProperty("size") long size,
+                          @JsonProperty("completedAt") long completedAt,
+                          @JsonProperty("contentHash") @Nullable String contentHash) {
+        this.path = path;
+        this.size = size;
+        this.completedAt = completedAt;
+        this.contentHash = contentHash;
+    }
+
+    @JsonIgnore
+    public Path getFile() {
+        return Paths.get(path);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    /**
+     * @return the SHA-256 of the result, if it is in the content store
+     */
+    @Nullable
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public String toString() {
+        return "Result " + path + " (" + size + " bytes)";
+    }
+}
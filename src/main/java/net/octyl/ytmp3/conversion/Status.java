@@ -26,5 +26,10 @@
 package net.octyl.ytmp3.conversion;
 
 public enum Status {
-    CREATED, CONVERTING, FAILED, SUCCESSFUL
+    CREATED, CONVERTING, FAILED, SUCCESSFUL,
+    /**
+     * Was successful, but the result was evicted from storage. It will be
+     * converted again when it is next requested.
+     */
+    EVICTED
 }
@@ -0,0 +1,180 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.techshroom.jungle.Loaders;
+import com.techshroom.jungle.PropOrEnvConfigOption;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.util.Config;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tracks the size and last access of every stored object, and evicts the least
+ * recently used ones once the store grows past its quota.
+ *
+ * <p>
+ * Evicted results are re-converted the next time they are requested, see
+ * {@link ConversionManager#evictResult(String)}.
+ * </p>
+ */
+public class StorageManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageManager.class);
+
+    // 0 means unlimited
+    private static final PropOrEnvConfigOption<Integer> QUOTA_MB =
+        Config.NAMESPACE.create("storage_quota_mb", Loaders.forIntInRange(0, Integer.MAX_VALUE), 0);
+    private static final long QUOTA = QUOTA_MB.get() * 1024L * 1024L;
+
+    private static final class Entry {
+        private final long size;
+        private volatile long lastAccess;
+
+        private Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static final Map<String, Entry> FILES = new ConcurrentHashMap<>();
+    private static final AtomicLong TOTAL_SIZE = new AtomicLong();
+    private static final ExecutorService EVICTOR = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("storage-evictor-%d").setDaemon(true).build());
+    private static final Counter QUOTA_EVICTIONS = Metrics.counter("ytmp3_storage_evictions_total",
+        "Stored results evicted to stay under the quota");
+
+    static {
+        Metrics.gauge("ytmp3_storage_bytes", "Bytes of stored results", TOTAL_SIZE::get);
+        Metrics.gauge("ytmp3_storage_objects", "Stored result objects", FILES::size);
+        Metrics.gauge("ytmp3_storage_quota_bytes", "Storage quota, or 0 if there is none", () -> QUOTA);
+    }
+
+    /**
+     * Picks up the files already in {@code directory} and its shards, then
+     * enforces the quota.
+     */
+    static void scan(Path directory) {
+        try (Stream<Path> files = Files.walk(directory, 3)) {
+            files.forEach(file -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        track(file.getFileName().toString(), attributes.size(), attributes.lastAccessTime().toMillis());
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to read " + file, e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOGGER.info("Result store holds {} files, {} bytes", FILES.size(), TOTAL_SIZE.get());
+        enforceQuota(null);
+    }
+
+    static void recordAdded(String objectName, long size) {
+        track(objectName, size, System.currentTimeMillis());
+        enforceQuota(objectName);
+    }
+
+    static void recordRemoved(String objectName) {
+        Entry removed = FILES.remove(objectName);
+        if (removed != null) {
+            TOTAL_SIZE.addAndGet(-removed.size);
+        }
+    }
+
+    /**
+     * Marks a result as just used, e.g. by a download.
+     */
+    public static void touch(String objectName) {
+        Entry entry = FILES.get(objectName);
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    public static long getTotalSize() {
+        return TOTAL_SIZE.get();
+    }
+
+    public static int getFileCount() {
+        return FILES.size();
+    }
+
+    private static void track(String objectName, long size, long lastAccess) {
+        Entry previous = FILES.put(objectName, new Entry(size, lastAccess));
+        TOTAL_SIZE.addAndGet(size - (previous == null ? 0 : previous.size));
+    }
+
+    private static void enforceQuota(@Nullable String keep) {
+        if (QUOTA == 0 || TOTAL_SIZE.get() <= QUOTA) {
+            return;
+        }
+        EVICTOR.execute(() -> {
+            List<String> leastRecentlyUsed = FILES.entrySet().stream()
+                .sorted(Comparator.comparingLong(e -> e.getValue().lastAccess))
+                .map(Map.Entry::getKey)
+                .filter(objectName -> !objectName.equals(keep))
+                .collect(Collectors.toList());
+            for (String objectName : leastRecentlyUsed) {
+                if (TOTAL_SIZE.get() <= QUOTA) {
+                    break;
+                }
+                LOGGER.info("Evicting " + objectName + " to stay under the storage quota");
+                try {
+                    ConversionManager.evictResult(objectName);
+                    QUOTA_EVICTIONS.increment();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unable to evict " + objectName, e);
+                }
+            }
+        });
+    }
+
+    private StorageManager() {
+    }
+
+}
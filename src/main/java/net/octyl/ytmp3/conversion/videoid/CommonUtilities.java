@@ -26,9 +26,14 @@
 package net.octyl.ytmp3.conversion.videoid;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -36,7 +41,7 @@ import java.util.regex.Pattern;
 
 public final class CommonUtilities {
 
-    private static final Splitter.MapSplitter QUERY_SPLITTER = Splitter.on('&').withKeyValueSeparator(Splitter.on('=').limit(2));
+    private static final Splitter QUERY_SPLITTER = Splitter.on('&').omitEmptyStrings();
     private static final Splitter PATH_SPLITTER = Splitter.on('/').omitEmptyStrings();
 
     private static final Pattern PROTOCOL_REGEX = Pattern.compile("[a-zA-Z]+://");
@@ -54,14 +59,60 @@ public final class CommonUtilities {
         }
     }
 
+    /**
+     * @return the decoded query parameters of {@code uri}, keeping the first
+     *     value of repeated ones
+     */
     public static Map<String, String> getQueryMap(URI uri) {
-        return QUERY_SPLITTER.split(uri.getQuery());
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return ImmutableMap.of();
+        }
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String parameter : QUERY_SPLITTER.split(query)) {
+            int equals = parameter.indexOf('=');
+            if (equals == -1) {
+                result.putIfAbsent(decode(parameter), "");
+            } else {
+                result.putIfAbsent(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+            }
+        }
+        return result;
+    }
+
+    private static String decode(String component) {
+        try {
+            return URLDecoder.decode(component, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // malformed escapes, take it as it is
+            return component;
+        }
     }
 
     public static List<String> getPathParts(URI uri) {
         return PATH_SPLITTER.splitToList(uri.getPath());
     }
 
+    /**
+     * @return {@code true} if {@code host} is one of {@code domains}, or a
+     *     subdomain of one
+     */
+    public static boolean isHostOrSubdomain(String host, Collection<String> domains) {
+        for (String domain : domains) {
+            if (isHostOrSubdomain(host, domain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isHostOrSubdomain(String host, String domain) {
+        return host.equalsIgnoreCase(domain)
+            || (host.length() > domain.length()
+            && host.charAt(host.length() - domain.length() - 1) == '.'
+            && host.regionMatches(true, host.length() - domain.length(), domain, 0, domain.length()));
+    }
+
     private CommonUtilities() {
     }
 
@@ -0,0 +1,143 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion.videoid;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Brings equivalent spellings of a URL to one form, so they can be compared.
+ *
+ * <p>
+ * The scheme becomes {@code https}, the host is lower-cased without a
+ * trailing dot or default port, the fragment is dropped, and the query is
+ * sorted with tracking parameters removed, including those only YouTube uses
+ * for tracking on its own hosts. The path is kept as given, as it
+ * is case-sensitive on most sites.
+ * </p>
+ */
+public final class UrlNormalizer {
+
+    private static final Set<String> TRACKING_PARAMETERS = ImmutableSet.of(
+        "fbclid", "gclid", "dclid", "igshid", "mc_cid", "mc_eid"
+    );
+    // only tracking on YouTube, other sites may give them a meaning
+    private static final Set<String> YOUTUBE_TRACKING_PARAMETERS = ImmutableSet.of(
+        "si", "feature", "pp", "ab_channel"
+    );
+    private static final String TRACKING_PREFIX = "utm_";
+    private static final Splitter QUERY_SPLITTER = Splitter.on('&').omitEmptyStrings();
+    private static final CharMatcher TRIM = CharMatcher.whitespace().or(CharMatcher.anyOf("<>\"'"));
+
+    /**
+     * @return the normalized form of {@code url}, or empty if it isn't a URL
+     *     with a host
+     */
+    public static Optional<URI> normalize(String url) {
+        String trimmed = TRIM.trimFrom(url);
+        if (trimmed.startsWith("//")) {
+            trimmed = "https:" + trimmed;
+        }
+        return CommonUtilities.asURI(trimmed).flatMap(UrlNormalizer::normalize);
+    }
+
+    private static Optional<URI> normalize(URI uri) {
+        String host = uri.getHost();
+        if (host == null || host.isEmpty()) {
+            return Optional.empty();
+        }
+        host = Ascii.toLowerCase(CharMatcher.is('.').trimTrailingFrom(host));
+        String scheme = Ascii.toLowerCase(uri.getScheme());
+        if (scheme.equals("http")) {
+            scheme = "https";
+        }
+        int port = uri.getPort();
+        if (port == 80 || port == 443) {
+            port = -1;
+        }
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+        String query = normalizeQuery(uri.getRawQuery(), CommonUtilities.isHostOrSubdomain(host, YoutubeVideoHandler.HOSTS));
+        if (scheme.equals(uri.getScheme()) && host.equals(uri.getHost()) && port == uri.getPort()
+            && path.equals(uri.getRawPath()) && Objects.equals(query, uri.getRawQuery())
+            && uri.getRawUserInfo() == null && uri.getRawFragment() == null) {
+            // already normalized, which is the common case
+            return Optional.of(uri);
+        }
+        StringBuilder result = new StringBuilder(scheme).append("://").append(host);
+        if (port != -1) {
+            result.append(':').append(port);
+        }
+        result.append(path);
+        if (query != null) {
+            result.append('?').append(query);
+        }
+        try {
+            return Optional.of(new URI(result.toString()));
+        } catch (URISyntaxException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static String normalizeQuery(String rawQuery, boolean youtube) {
+        if (rawQuery == null) {
+            return null;
+        }
+        List<String> parameters = QUERY_SPLITTER.splitToStream(rawQuery)
+            .filter(parameter -> !isTracking(parameter, youtube))
+            // stable, so repeated parameters keep their order
+            .sorted((a, b) -> parameterName(a).compareTo(parameterName(b)))
+            .collect(Collectors.toList());
+        return parameters.isEmpty() ? null : String.join("&", parameters);
+    }
+
+    private static boolean isTracking(String parameter, boolean youtube) {
+        String name = Ascii.toLowerCase(parameterName(parameter));
+        return name.startsWith(TRACKING_PREFIX) || TRACKING_PARAMETERS.contains(name)
+            || (youtube && YOUTUBE_TRACKING_PARAMETERS.contains(name));
+    }
+
+    private static String parameterName(String parameter) {
+        int equals = parameter.indexOf('=');
+        return equals == -1 ? parameter : parameter.substring(0, equals);
+    }
+
+    private UrlNormalizer() {
+    }
+
+}
@@ -25,10 +25,28 @@
 
 package net.octyl.ytmp3.conversion.videoid;
 
+import java.net.URI;
 import java.util.Optional;
+import java.util.Set;
 
 public interface VideoHandler {
 
-    Optional<VideoId> findId(String video);
+    /**
+     * The hosts this handler owns, including their subdomains. URLs on other
+     * hosts are never given to it. An empty set means it is asked about every
+     * URL, after the handlers that own the host.
+     */
+    default Set<String> getHosts() {
+        return Set.of();
+    }
+
+    /**
+     * @param video a URL from {@link UrlNormalizer#normalize(String)}
+     */
+    Optional<VideoId> findId(URI video);
+
+    default Optional<VideoId> findId(String video) {
+        return UrlNormalizer.normalize(video).flatMap(this::findId);
+    }
 
 }
@@ -0,0 +1,93 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.conversion.videoid;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Dispatches URLs to the {@link VideoHandler handlers} that own their host.
+ * Each URL is normalized once, then only the handlers registered for the host
+ * or one of its parent domains are asked, so a lookup doesn't get slower as
+ * handlers are added.
+ */
+public final class VideoHandlerIndex {
+
+    private final ImmutableListMultimap<String, VideoHandler> byHost;
+    private final List<VideoHandler> anyHost;
+
+    public VideoHandlerIndex(Iterable<? extends VideoHandler> handlers) {
+        ImmutableListMultimap.Builder<String, VideoHandler> byHost = ImmutableListMultimap.builder();
+        ImmutableList.Builder<VideoHandler> anyHost = ImmutableList.builder();
+        for (VideoHandler handler : handlers) {
+            if (handler.getHosts().isEmpty()) {
+                anyHost.add(handler);
+            }
+            for (String host : handler.getHosts()) {
+                byHost.put(host, handler);
+            }
+        }
+        this.byHost = byHost.build();
+        this.anyHost = anyHost.build();
+    }
+
+    public Optional<VideoId> findId(String video) {
+        return UrlNormalizer.normalize(video).flatMap(this::findId);
+    }
+
+    /**
+     * @param video a URL from {@link UrlNormalizer#normalize(String)}
+     */
+    public Optional<VideoId> findId(URI video) {
+        // most specific first: m.youtube.com, then youtube.com, then com
+        String host = video.getHost();
+        for (int start = 0; start != -1; start = nextLabel(host, start)) {
+            for (VideoHandler handler : byHost.get(host.substring(start))) {
+                Optional<VideoId> id = handler.findId(video);
+                if (id.isPresent()) {
+                    return id;
+                }
+            }
+        }
+        for (VideoHandler handler : anyHost) {
+            Optional<VideoId> id = handler.findId(video);
+            if (id.isPresent()) {
+                return id;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static int nextLabel(String host, int start) {
+        int dot = host.indexOf('.', start);
+        return dot == -1 ? -1 : dot + 1;
+    }
+
+}
@@ -25,12 +25,16 @@
 
 package net.octyl.ytmp3.conversion.videoid;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 public final class VideoId {
 
     private final String provider;
     private final String id;
 
-    public VideoId(String provider, String id) {
+    @JsonCreator
+    public VideoId(@JsonProperty("provider") String provider, @JsonProperty("id") String id) {
         this.provider = provider;
         this.id = id;
     }
@@ -33,24 +33,20 @@ import org.slf4j.LoggerFactory;
 import java.util.List;
 import java.util.Optional;
 import java.util.ServiceLoader;
-import java.util.function.Function;
 
 public class VideoIdFinder {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(VideoIdFinder.class);
 
     private static final List<VideoHandler> HANDLERS = ImmutableList.copyOf(ServiceLoader.load(VideoHandler.class));
+    private static final VideoHandlerIndex INDEX = new VideoHandlerIndex(HANDLERS);
 
     static {
         LOGGER.info("Found VideoHandlers " + Lists.transform(HANDLERS, Object::getClass));
     }
 
     public static Optional<VideoId> findId(String video) {
-        return HANDLERS.stream()
-            .map(h -> h.findId(video))
-            .filter(Optional::isPresent)
-            .findFirst()
-            .flatMap(Function.identity());
+        return INDEX.findId(video);
     }
 
 }
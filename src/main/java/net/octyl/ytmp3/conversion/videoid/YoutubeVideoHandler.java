@@ -26,33 +26,71 @@
 package net.octyl.ytmp3.conversion.videoid;
 
 import com.google.auto.service.AutoService;
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.net.URI;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 @AutoService(VideoHandler.class)
 public class YoutubeVideoHandler implements VideoHandler {
 
+    private static final String SHORT_HOST = "youtu.be";
+    // www., m., music. and so on are all the same site
+    static final Set<String> HOSTS = ImmutableSet.of("youtube.com", "youtube-nocookie.com", SHORT_HOST);
+    // /<path>/<id>
+    private static final Set<String> ID_PATHS = ImmutableSet.of("embed", "v", "e", "shorts", "live", "watch");
+    private static final Pattern VIDEO_ID = Pattern.compile("[A-Za-z0-9_-]{11}");
+
     @Override
-    public Optional<VideoId> findId(String video) {
-        return CommonUtilities.asURI(video).map(uri -> {
-            String host = uri.getHost();
-            if (host.equalsIgnoreCase("www.youtube.com")) {
-                List<String> pathParts = CommonUtilities.getPathParts(uri);
-                // It should be at the watch path or embed path
-                if (pathParts.get(0).equalsIgnoreCase("watch")) {
-                    Map<String, String> query = CommonUtilities.getQueryMap(uri);
-                    return query.get("v");
-                }
-                if (pathParts.size() >= 2 && pathParts.get(0).equalsIgnoreCase("embed")) {
-                    return pathParts.get(1);
-                }
-            } else if (host.equalsIgnoreCase("youtu.be")) {
-                return CommonUtilities.getPathParts(uri).get(0);
-            }
+    public Set<String> getHosts() {
+        return HOSTS;
+    }
+
+    @Override
+    public Optional<VideoId> findId(URI video) {
+        return Optional.ofNullable(findRawId(video))
+            .filter(id -> VIDEO_ID.matcher(id).matches())
+            .map(id -> new VideoId("youtube", id));
+    }
+
+    @Nullable
+    private String findRawId(URI uri) {
+        String host = uri.getHost();
+        List<String> pathParts = CommonUtilities.getPathParts(uri);
+        if (CommonUtilities.isHostOrSubdomain(host, SHORT_HOST)) {
+            return pathParts.isEmpty() ? null : pathParts.get(0);
+        }
+        if (!CommonUtilities.isHostOrSubdomain(host, HOSTS) || pathParts.isEmpty()) {
             return null;
-        }).map(id -> new VideoId("youtube", id));
+        }
+        String first = Ascii.toLowerCase(pathParts.get(0));
+        if (first.equals("watch")) {
+            String id = CommonUtilities.getQueryMap(uri).get("v");
+            if (id != null) {
+                return id;
+            }
+        }
+        if (first.equals("attribution_link")) {
+            // the real URL is in u, relative to the site
+            String target = CommonUtilities.getQueryMap(uri).get("u");
+            if (target == null) {
+                return null;
+            }
+            return UrlNormalizer.normalize("https://www.youtube.com/" + (target.startsWith("/") ? target.substring(1) : target))
+                .map(this::findRawId)
+                .orElse(null);
+        }
+        if (pathParts.size() >= 2 && ID_PATHS.contains(first)) {
+            String id = pathParts.get(1);
+            // playlist embeds have no video
+            return id.equals("videoseries") ? null : id;
+        }
+        return null;
     }
 
 }
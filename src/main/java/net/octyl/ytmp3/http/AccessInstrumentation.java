@@ -0,0 +1,205 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.metrics.Summary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times every exchange from the request being read until the last of the
+ * response is written, by route template, and writes the access log.
+ *
+ * <p>
+ * The access log goes to the {@code net.octyl.ytmp3.access} logger, which is
+ * asynchronous in the default configuration. Lines are built in a buffer
+ * per event loop thread.
+ * </p>
+ */
+public class AccessInstrumentation extends ChannelDuplexHandler {
+
+    private static final Logger ACCESS_LOG = LogManager.getLogger("net.octyl.ytmp3.access");
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static final Map<String, RouteMetrics> ROUTES = new ConcurrentHashMap<>();
+    private static final ThreadLocal<StringBuilder> LINE = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    static {
+        Metrics.gauge("ytmp3_http_requests_in_flight", "Requests read but not yet fully answered", IN_FLIGHT::get);
+    }
+
+    private static final class RouteMetrics {
+        private final String route;
+        private final Summary latency;
+        private final Counter bytes;
+        private final Map<Integer, Counter> statuses = new ConcurrentHashMap<>();
+
+        private RouteMetrics(String route) {
+            this.route = route;
+            this.latency = Metrics.summary("ytmp3_http_request_seconds",
+                "Time from reading a request until its response is written", 1e-9, "route", route);
+            this.bytes = Metrics.counter("ytmp3_http_response_bytes_total",
+                "Response body bytes written", "route", route);
+        }
+
+        private Counter status(int code) {
+            return statuses.computeIfAbsent(code, c -> Metrics.counter("ytmp3_http_responses_total",
+                "Responses written, by status code", "route", route, "code", String.valueOf(c)));
+        }
+    }
+
+    private final class Exchange implements ChannelFutureListener {
+        private final String method;
+        private final String uri;
+        private final RouteMetrics metrics;
+        private final long start = System.nanoTime();
+        // 0 until the response head is written
+        private int status;
+        private long bytes;
+
+        private Exchange(String method, String uri, RouteMetrics metrics) {
+            this.method = method;
+            this.uri = uri;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            finish(this, future.isSuccess());
+        }
+    }
+
+    private final RouteTemplates routes;
+    // only touched on the channel's event loop, responses come back in request order
+    private final Deque<Exchange> pending = new ArrayDeque<>();
+    private String remote = "-";
+
+    public AccessInstrumentation(RouteTemplates routes) {
+        this.routes = routes;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        SocketAddress address = ctx.channel().remoteAddress();
+        if (address instanceof InetSocketAddress) {
+            remote = ((InetSocketAddress) address).getHostString();
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            String route = routes.normalize(request.uri());
+            pending.addLast(new Exchange(request.method().name(), request.uri(),
+                ROUTES.computeIfAbsent(route, RouteMetrics::new)));
+            IN_FLIGHT.incrementAndGet();
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        Exchange exchange = pending.peekFirst();
+        if (exchange != null) {
+            if (msg instanceof HttpResponse) {
+                exchange.status = ((HttpResponse) msg).status().code();
+            }
+            if (msg instanceof HttpContent) {
+                exchange.bytes += ((HttpContent) msg).content().readableBytes();
+            } else if (msg instanceof ByteBuf) {
+                exchange.bytes += ((ByteBuf) msg).readableBytes();
+            } else if (msg instanceof FileRegion) {
+                exchange.bytes += ((FileRegion) msg).count();
+            }
+            if (msg instanceof LastHttpContent) {
+                pending.pollFirst();
+                if (promise.isVoid()) {
+                    finish(exchange, true);
+                } else {
+                    promise.addListener(exchange);
+                }
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // event streams and aborted downloads never see their last content
+        Exchange exchange;
+        while ((exchange = pending.pollFirst()) != null) {
+            finish(exchange, false);
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void finish(Exchange exchange, boolean complete) {
+        long nanos = System.nanoTime() - exchange.start;
+        IN_FLIGHT.decrementAndGet();
+        RouteMetrics metrics = exchange.metrics;
+        metrics.latency.record(nanos);
+        metrics.bytes.add(exchange.bytes);
+        metrics.status(exchange.status).increment();
+
+        if (!ACCESS_LOG.isInfoEnabled()) {
+            return;
+        }
+        StringBuilder line = LINE.get();
+        line.setLength(0);
+        line.append(remote).append(" \"").append(exchange.method).append(' ').append(exchange.uri)
+            .append("\" ").append(exchange.status)
+            .append(' ').append(exchange.bytes)
+            .append(' ').append(nanos / 1_000_000).append("ms ")
+            .append(metrics.route);
+        if (!complete) {
+            line.append(" incomplete");
+        }
+        ACCESS_LOG.info(line);
+    }
+
+}
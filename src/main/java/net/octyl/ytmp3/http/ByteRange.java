@@ -0,0 +1,181 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.http;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An inclusive range of bytes, as used by the {@code Range} header.
+ */
+public final class ByteRange {
+
+    private static final String UNIT = "bytes=";
+    private static final Splitter SPEC_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    // More ranges than this aren't worth the multipart overhead, just send the whole thing
+    private static final int MAX_RANGES = 16;
+
+    /**
+     * Parses a {@code Range} header for a representation of {@code length}
+     * bytes. Overlapping and adjacent ranges are merged, and the result is
+     * sorted by position.
+     *
+     * @return empty if the header should be ignored, otherwise the satisfiable
+     *     ranges, which may be an empty list if there aren't any
+     */
+    public static Optional<List<ByteRange>> parse(String header, long length) {
+        if (header.length() < UNIT.length() || !Ascii.equalsIgnoreCase(header.substring(0, UNIT.length()), UNIT)) {
+            return Optional.empty();
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        int specs = 0;
+        for (String spec : SPEC_SPLITTER.split(header.substring(UNIT.length()))) {
+            specs++;
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return Optional.empty();
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // suffix range, the final N bytes
+                    long suffix = parseNumber(spec.substring(1));
+                    if (suffix == 0 || length == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = parseNumber(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : parseNumber(spec.substring(dash + 1));
+                    if (last < first) {
+                        return Optional.empty();
+                    }
+                    if (first >= length) {
+                        continue;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+            ranges.add(new ByteRange(first, last));
+        }
+        if (specs == 0) {
+            return Optional.empty();
+        }
+        List<ByteRange> merged = merge(ranges);
+        if (merged.size() > MAX_RANGES) {
+            return Optional.empty();
+        }
+        return Optional.of(merged);
+    }
+
+    private static long parseNumber(String number) {
+        if (number.isEmpty() || !number.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            throw new NumberFormatException(number);
+        }
+        return Long.parseLong(number);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        ranges.sort(Comparator.comparingLong(ByteRange::getFirst));
+        ImmutableList.Builder<ByteRange> merged = ImmutableList.builder();
+        ByteRange current = null;
+        for (ByteRange range : ranges) {
+            if (current == null) {
+                current = range;
+            } else if (range.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, range.last));
+            } else {
+                merged.add(current);
+                current = range;
+            }
+        }
+        if (current != null) {
+            merged.add(current);
+        }
+        return merged.build();
+    }
+
+    private final long first;
+    private final long last;
+
+    public ByteRange(long first, long last) {
+        checkArgument(first >= 0 && last >= first, "Invalid range %s-%s", first, last);
+        this.first = first;
+        this.last = last;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the value for a {@code Content-Range} header
+     */
+    public String toContentRange(long completeLength) {
+        return "bytes " + first + "-" + last + "/" + completeLength;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteRange)) return false;
+
+        ByteRange that = (ByteRange) o;
+
+        return first == that.first && last == that.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(first) + Long.hashCode(last);
+    }
+
+    @Override
+    public String toString() {
+        return first + "-" + last;
+    }
+
+}
@@ -0,0 +1,443 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.http;
+
+import com.google.common.base.Splitter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import net.octyl.ytmp3.conversion.Conversion;
+import net.octyl.ytmp3.conversion.ConversionManager;
+import net.octyl.ytmp3.conversion.ProgressiveFile;
+import net.octyl.ytmp3.conversion.ResultCache;
+import net.octyl.ytmp3.conversion.ResultMetadata;
+import net.octyl.ytmp3.conversion.StorageManager;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.util.HttpFileName;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves finished downloads straight from disk, without copying them through
+ * the heap. Plain connections use {@link DefaultFileRegion} (sendfile), TLS
+ * connections read the file in chunks into pooled buffers. Popular files are
+ * served from the {@link ResultCache} without touching the disk at all.
+ *
+ * <p>
+ * Single and multiple byte ranges are supported, along with the usual
+ * conditional requests against the {@code ETag} and {@code Last-Modified}
+ * validators.
+ * </p>
+ *
+ * <p>
+ * Conversions that are still running can be downloaded with
+ * {@code ?progressive}, if the server runs in progressive mode. See
+ * {@link ProgressiveDownload}.
+ * </p>
+ *
+ * <p>
+ * Anything else is passed on to the router, which produces the usual error
+ * responses.
+ * </p>
+ */
+public class DownloadHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DownloadHandler.class);
+    private static final Pattern DOWNLOAD_PATH = Pattern.compile("/mp3ify/([^/]+)/download");
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Splitter ENTITY_TAG_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private static final Counter CACHE_BYTES = bytesFrom("cache");
+    private static final Counter FILE_BYTES = bytesFrom("file");
+    private static final Counter FULL_RESPONSES = responses("full");
+    private static final Counter PARTIAL_RESPONSES = responses("partial");
+    private static final Counter NOT_MODIFIED_RESPONSES = responses("not_modified");
+    private static final Counter UNSATISFIABLE_RESPONSES = responses("unsatisfiable");
+
+    static Counter bytesFrom(String source) {
+        return Metrics.counter("ytmp3_download_bytes_total", "Download body bytes sent, by where they came from",
+            "source", source);
+    }
+
+    private static Counter responses(String kind) {
+        return Metrics.counter("ytmp3_downloads_total", "Download responses, by kind", "response", kind);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof FullHttpRequest) {
+            FullHttpRequest request = (FullHttpRequest) msg;
+            if (tryServe(ctx, request)) {
+                request.release();
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private static boolean tryServe(ChannelHandlerContext ctx, FullHttpRequest request) {
+        if (!request.method().equals(HttpMethod.GET) && !request.method().equals(HttpMethod.HEAD)) {
+            return false;
+        }
+        QueryStringDecoder uri = new QueryStringDecoder(request.uri());
+        Matcher matcher = DOWNLOAD_PATH.matcher(uri.path());
+        if (!matcher.matches()) {
+            return false;
+        }
+        Conversion conversion = ConversionManager.getConversion(matcher.group(1));
+        if (conversion == null) {
+            return false;
+        }
+        switch (conversion.getStatus()) {
+            case SUCCESSFUL:
+                return serve(ctx, request, conversion);
+            case CONVERTING:
+                // opt-in, as the result can't be resumed or range-requested yet
+                ProgressiveFile file = conversion.getProgressiveFile();
+                return file != null && uri.parameters().containsKey("progressive")
+                    && ProgressiveDownload.start(ctx, request, conversion, file);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean serve(ChannelHandlerContext ctx, FullHttpRequest request, Conversion conversion) {
+        // recorded when the conversion completed, so no file system access is needed here
+        ResultMetadata result = conversion.getResult();
+        if (result == null) {
+            return false;
+        }
+        Path resultFile = result.getFile();
+        long length = result.getSize();
+        String objectName = resultFile.getFileName().toString();
+        StorageManager.touch(objectName);
+        // results are content-addressed, so the hash is a strong validator for free
+        String contentHash = result.getContentHash();
+        String etag = contentHash == null ? null : '"' + contentHash + '"';
+        // HTTP dates only have second precision
+        long lastModifiedSeconds = TimeUnit.MILLISECONDS.toSeconds(result.getCompletedAt());
+
+        HttpHeaders validators = new DefaultHttpHeaders()
+            .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES)
+            .set(HttpHeaderNames.LAST_MODIFIED, DateFormatter.format(new Date(lastModifiedSeconds * 1000)));
+        if (etag != null) {
+            validators.set(HttpHeaderNames.ETAG, etag);
+        }
+
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (isNotModified(request.headers(), etag, lastModifiedSeconds)) {
+            NOT_MODIFIED_RESPONSES.increment();
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+            response.headers().set(validators);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            finish(ctx.writeAndFlush(response), keepAlive);
+            return true;
+        }
+
+        List<ByteRange> ranges = null;
+        String rangeHeader = request.headers().get(HttpHeaderNames.RANGE);
+        if (rangeHeader != null && request.method().equals(HttpMethod.GET)
+            && ifRangeMatches(request.headers().get(HttpHeaderNames.IF_RANGE), etag, lastModifiedSeconds)) {
+            ranges = ByteRange.parse(rangeHeader, length).orElse(null);
+        }
+        if (ranges != null && ranges.isEmpty()) {
+            UNSATISFIABLE_RESPONSES.increment();
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.headers().set(validators)
+                .set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+            finish(ctx.writeAndFlush(emptyBody(response, keepAlive)), keepAlive);
+            return true;
+        }
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+            ranges == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT);
+        response.headers()
+            .set(validators)
+            .set(HttpHeaderNames.CONTENT_DISPOSITION, HttpFileName.encodeDisposition(conversion.getFileName()))
+            // ensure netty gzip is not applied
+            .set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        // before the head is written, so the file can't go away mid-body
+        Body body = openBody(ctx, objectName, resultFile, length);
+        if (body == null) {
+            return false;
+        }
+        (ranges == null ? FULL_RESPONSES : PARTIAL_RESPONSES).increment();
+
+        if (ranges == null || ranges.size() == 1) {
+            ByteRange range = ranges == null ? null : ranges.get(0);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+            if (range != null) {
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, range.toContentRange(length));
+            }
+            HttpUtil.setContentLength(response, range == null ? length : range.getLength());
+            ctx.write(response);
+            if (!request.method().equals(HttpMethod.HEAD)) {
+                body.write(range == null ? 0 : range.getFirst(), range == null ? length : range.getLength());
+            }
+        } else {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            List<ByteBuf> partHeaders = new ArrayList<>(ranges.size());
+            long contentLength = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                ByteBuf partHeader = Unpooled.copiedBuffer((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + HttpHeaderNames.CONTENT_TYPE + ": " + HttpHeaderValues.APPLICATION_OCTET_STREAM + "\r\n"
+                    + HttpHeaderNames.CONTENT_RANGE + ": " + range.toContentRange(length) + "\r\n"
+                    + "\r\n", StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                contentLength += partHeader.readableBytes() + range.getLength();
+            }
+            ByteBuf closing = Unpooled.copiedBuffer("\r\n--" + boundary + "--\r\n", StandardCharsets.US_ASCII);
+            contentLength += closing.readableBytes();
+
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+            HttpUtil.setContentLength(response, contentLength);
+            ctx.write(response);
+            for (int i = 0; i < ranges.size(); i++) {
+                ctx.write(new DefaultHttpContent(partHeaders.get(i)));
+                body.write(ranges.get(i).getFirst(), ranges.get(i).getLength());
+            }
+            ctx.write(new DefaultHttpContent(closing));
+        }
+        body.release();
+        finish(ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT), keepAlive);
+        return true;
+    }
+
+    private static boolean isNotModified(HttpHeaders headers, @Nullable String etag, long lastModifiedSeconds) {
+        String ifNoneMatch = headers.get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            if (ifNoneMatch.trim().equals("*")) {
+                return true;
+            }
+            return etag != null && ENTITY_TAG_SPLITTER.splitToStream(ifNoneMatch)
+                // weak comparison
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(etag::equals);
+        }
+        Long ifModifiedSince = parseDateSeconds(headers.get(HttpHeaderNames.IF_MODIFIED_SINCE));
+        return ifModifiedSince != null && lastModifiedSeconds <= ifModifiedSince;
+    }
+
+    private static boolean ifRangeMatches(@Nullable String ifRange, @Nullable String etag, long lastModifiedSeconds) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // strong comparison, so weak tags never match
+            return ifRange.equals(etag);
+        }
+        Long date = parseDateSeconds(ifRange);
+        return date != null && date == lastModifiedSeconds;
+    }
+
+    @Nullable
+    private static Long parseDateSeconds(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        Date date = DateFormatter.parseHttpDate(value);
+        return date == null ? null : TimeUnit.MILLISECONDS.toSeconds(date.getTime());
+    }
+
+    private static FullHttpResponse emptyBody(FullHttpResponse response, boolean keepAlive) {
+        HttpUtil.setContentLength(response, 0);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        return response;
+    }
+
+    /**
+     * Where the bytes of a download come from.
+     */
+    private interface Body {
+
+        void write(long offset, long length);
+
+        void release();
+
+    }
+
+    /**
+     * An open result file, shared by every region written from it. While it
+     * is open, the file can be evicted or replaced without breaking the
+     * response.
+     */
+    private static final class OpenFile extends AbstractReferenceCounted {
+        private final FileChannel channel;
+
+        private OpenFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        protected void deallocate() {
+            closeQuietly(channel);
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+
+    @Nullable
+    private static Body openBody(ChannelHandlerContext ctx, String objectName, Path file, long length) {
+        ByteBuf cached = ResultCache.get(objectName);
+        if (cached != null && cached.readableBytes() != length) {
+            // stale, a legacy file was replaced
+            cached.release();
+            ResultCache.invalidate(objectName);
+            cached = null;
+        }
+        if (cached != null) {
+            ByteBuf buffer = cached;
+            return new Body() {
+                @Override
+                public void write(long offset, long length) {
+                    CACHE_BYTES.add(length);
+                    ctx.write(new DefaultHttpContent(buffer.retainedSlice((int) offset, (int) length)));
+                }
+
+                @Override
+                public void release() {
+                    buffer.release();
+                }
+            };
+        }
+        OpenFile openFile;
+        try {
+            openFile = new OpenFile(FileChannel.open(file, StandardOpenOption.READ));
+        } catch (IOException e) {
+            LOGGER.debug("Result " + file + " went away before it could be served", e);
+            return null;
+        }
+        long fileLength = length;
+        boolean ssl = ctx.pipeline().get(SslHandler.class) != null;
+        return new Body() {
+            private boolean offered;
+
+            @Override
+            public void write(long offset, long length) {
+                // only bodies that are sent count towards caching, HEAD never gets here
+                if (!offered) {
+                    offered = true;
+                    ResultCache.offer(objectName, file, fileLength);
+                }
+                FILE_BYTES.add(length);
+                writeRegion(ctx, openFile, offset, length, ssl);
+            }
+
+            @Override
+            public void release() {
+                openFile.release();
+            }
+        };
+    }
+
+    private static void writeRegion(ChannelHandlerContext ctx, OpenFile file, long offset, long length, boolean ssl) {
+        // each region holds the file open until it has been written
+        file.retain();
+        if (!ssl) {
+            ctx.write(new DefaultFileRegion(file.channel, offset, length) {
+                @Override
+                protected void deallocate() {
+                    file.release();
+                }
+            });
+            return;
+        }
+        // sendfile would bypass encryption
+        try {
+            ctx.write(new ChunkedNioFile(file.channel, offset, length, CHUNK_SIZE) {
+                @Override
+                public void close() {
+                    file.release();
+                }
+            });
+        } catch (IOException e) {
+            file.release();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void finish(ChannelFuture last, boolean keepAlive) {
+        if (!keepAlive) {
+            last.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
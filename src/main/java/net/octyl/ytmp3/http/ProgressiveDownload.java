@@ -0,0 +1,192 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import net.octyl.ytmp3.conversion.Conversion;
+import net.octyl.ytmp3.conversion.ProgressiveFile;
+import net.octyl.ytmp3.metrics.Counter;
+import net.octyl.ytmp3.util.HttpFileName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tails a {@link ProgressiveFile} with chunked transfer encoding. It sleeps
+ * until the conversion appends more data, and ends the response once the
+ * conversion is done.
+ */
+final class ProgressiveDownload {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProgressiveDownload.class);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Counter PROGRESSIVE_BYTES = DownloadHandler.bytesFrom("progressive");
+
+    /**
+     * @return {@code false} if the file couldn't be opened, and the request
+     *     should be handled elsewhere
+     */
+    static boolean start(ChannelHandlerContext ctx, FullHttpRequest request, Conversion conversion, ProgressiveFile file) {
+        FileChannel channel;
+        try {
+            channel = file.openReader();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to open " + file.getPath() + ", leaving it to the router", e);
+            return false;
+        }
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers()
+            .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM)
+            .set(HttpHeaderNames.CONTENT_DISPOSITION, HttpFileName.encodeDisposition(conversion.getFileName()))
+            // ensure netty gzip is not applied
+            .set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        ctx.write(response);
+
+        ProgressiveDownload download = new ProgressiveDownload(ctx, channel, file, keepAlive);
+        if (request.method().equals(HttpMethod.HEAD)) {
+            download.close();
+            download.finish();
+            return true;
+        }
+        file.addListener(download.wakeUp);
+        ctx.channel().closeFuture().addListener(f -> download.close());
+        download.pump();
+        return true;
+    }
+
+    private final ChannelHandlerContext ctx;
+    private final FileChannel channel;
+    private final ProgressiveFile file;
+    private final boolean keepAlive;
+    private final Runnable wakeUp = this::wakeUp;
+    private final AtomicBoolean waiting = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // only touched on the event loop
+    private long position;
+
+    private ProgressiveDownload(ChannelHandlerContext ctx, FileChannel channel, ProgressiveFile file, boolean keepAlive) {
+        this.ctx = ctx;
+        this.channel = channel;
+        this.file = file;
+        this.keepAlive = keepAlive;
+    }
+
+    // called from the writing thread, so just hop over to the event loop
+    private void wakeUp() {
+        if (waiting.compareAndSet(true, false)) {
+            ctx.executor().execute(this::pump);
+        }
+    }
+
+    private void pump() {
+        if (closed.get()) {
+            return;
+        }
+        // check this first, the length is final once it's set
+        boolean finished = file.isFinished();
+        long available = file.getLength() - position;
+        if (available > 0) {
+            ByteBuf chunk = ctx.alloc().ioBuffer((int) Math.min(available, CHUNK_SIZE));
+            try {
+                while (chunk.isWritable()) {
+                    int read = chunk.writeBytes(channel, position + chunk.readableBytes(), chunk.writableBytes());
+                    if (read == -1) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                chunk.release();
+                LOGGER.warn("Unable to read " + file.getPath(), e);
+                close();
+                ctx.close();
+                return;
+            }
+            PROGRESSIVE_BYTES.add(chunk.readableBytes());
+            position += chunk.readableBytes();
+            ctx.writeAndFlush(new DefaultHttpContent(chunk)).addListener(f -> {
+                if (f.isSuccess()) {
+                    pump();
+                } else {
+                    close();
+                }
+            });
+            return;
+        }
+        if (finished) {
+            close();
+            if (file.isSuccessful()) {
+                finish();
+            } else {
+                // there's no way to report an error halfway through the body
+                ctx.close();
+            }
+            return;
+        }
+        waiting.set(true);
+        // re-check, in case we missed the append while setting up
+        if (file.isFinished() || file.getLength() > position) {
+            wakeUp();
+        }
+    }
+
+    private void finish() {
+        var last = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!keepAlive) {
+            last.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        file.removeListener(wakeUp);
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.http;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.ReferenceCountUtil;
+import net.octyl.ytmp3.Startup;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Holds requests that need conversion data until {@link Startup} is ready.
+ * Requests for the index page and assets pass straight through.
+ *
+ * <p>
+ * Once one request is held, everything after it on the same connection is
+ * held too, so responses stay in order.
+ * </p>
+ */
+public class ReadinessGate extends ChannelInboundHandlerAdapter {
+
+    private static boolean needsData(Object msg) {
+        if (!(msg instanceof HttpRequest)) {
+            return false;
+        }
+        String path = new QueryStringDecoder(((HttpRequest) msg).uri()).path();
+        return path.startsWith("/mp3ify") || path.startsWith("/stats") || path.equals("/metrics");
+    }
+
+    // only touched on the channel's event loop
+    private final Deque<Object> held = new ArrayDeque<>();
+    private boolean holding;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!holding && (Startup.isReady() || !needsData(msg))) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        held.addLast(msg);
+        if (!holding) {
+            holding = true;
+            ctx.channel().config().setAutoRead(false);
+            Startup.whenReady().whenComplete((ignored, error) -> ctx.executor().execute(() -> release(ctx)));
+        }
+    }
+
+    private void release(ChannelHandlerContext ctx) {
+        holding = false;
+        Object msg;
+        while ((msg = held.pollFirst()) != null) {
+            ctx.fireChannelRead(msg);
+        }
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        Object msg;
+        while ((msg = held.pollFirst()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+}
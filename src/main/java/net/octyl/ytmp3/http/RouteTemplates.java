@@ -0,0 +1,176 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.http;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Maps request paths back to the route templates they were matched by, such
+ * as {@code /mp3ify/{*}/download}, so per-route statistics don't grow with
+ * every conversion ID.
+ */
+public final class RouteTemplates {
+
+    public static final String OTHER = "other";
+
+    private static final String ANY_SEGMENT = "{*}";
+    private static final String ANY_REST = "{**}";
+    private static final Splitter SEGMENTS = Splitter.on('/').omitEmptyStrings();
+
+    /**
+     * Collects the templates from the lettar {@code @Path} annotations on the
+     * methods of {@code routeClasses}.
+     */
+    public static RouteTemplates scan(Class<?>... routeClasses) {
+        ImmutableSet.Builder<String> templates = ImmutableSet.builder();
+        for (Class<?> routeClass : routeClasses) {
+            for (Method method : routeClass.getMethods()) {
+                var path = method.getAnnotation(com.techshroom.lettar.pipe.builtins.path.Path.class);
+                if (path != null) {
+                    templates.addAll(annotationValues(path));
+                }
+            }
+        }
+        return of(templates.build());
+    }
+
+    private static List<String> annotationValues(Annotation annotation) {
+        try {
+            Object value = annotation.annotationType().getMethod("value").invoke(annotation);
+            return value instanceof String[] ? Arrays.asList((String[]) value) : List.of((String) value);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Unable to read " + annotation, e);
+        }
+    }
+
+    public static RouteTemplates of(Collection<String> templates) {
+        return new RouteTemplates(templates.stream()
+            .map(Template::new)
+            .sorted()
+            .collect(ImmutableList.toImmutableList()));
+    }
+
+    private static final class Template implements Comparable<Template> {
+        private final String template;
+        private final String[] segments;
+
+        private Template(String template) {
+            this.template = template;
+            this.segments = SEGMENTS.splitToList(template).toArray(new String[0]);
+        }
+
+        private static int rank(String segment) {
+            switch (segment) {
+                case ANY_SEGMENT:
+                    return 1;
+                case ANY_REST:
+                    return 2;
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Literal segments sort before wildcards, so the most specific
+         * template is tried first.
+         */
+        @Override
+        public int compareTo(Template o) {
+            int common = Math.min(segments.length, o.segments.length);
+            for (int i = 0; i < common; i++) {
+                int byRank = Integer.compare(rank(segments[i]), rank(o.segments[i]));
+                if (byRank != 0) {
+                    return byRank;
+                }
+            }
+            return Comparator.<Template>comparingInt(t -> -t.segments.length)
+                .thenComparing(t -> t.template)
+                .compare(this, o);
+        }
+
+        // walks the path in place, this runs for every request
+        boolean matches(String path, int end) {
+            int position = 0;
+            for (String segment : segments) {
+                while (position < end && path.charAt(position) == '/') {
+                    position++;
+                }
+                if (position >= end) {
+                    return false;
+                }
+                if (segment.equals(ANY_REST)) {
+                    return true;
+                }
+                int next = path.indexOf('/', position);
+                if (next == -1 || next > end) {
+                    next = end;
+                }
+                if (!segment.equals(ANY_SEGMENT)
+                    && (next - position != segment.length() || !path.startsWith(segment, position))) {
+                    return false;
+                }
+                position = next;
+            }
+            while (position < end && path.charAt(position) == '/') {
+                position++;
+            }
+            return position == end;
+        }
+    }
+
+    private final List<Template> templates;
+
+    private RouteTemplates(List<Template> templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * @param uri the request URI, which may have a query string
+     * @return the template matching {@code uri}, or {@link #OTHER}
+     */
+    public String normalize(String uri) {
+        int end = uri.indexOf('?');
+        if (end == -1) {
+            end = uri.length();
+        }
+        for (Template template : templates) {
+            if (template.matches(uri, end)) {
+                return template.template;
+            }
+        }
+        return OTHER;
+    }
+}
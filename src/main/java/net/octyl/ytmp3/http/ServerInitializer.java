@@ -0,0 +1,64 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.http;
+
+import com.techshroom.lettar.Router;
+import com.techshroom.templar.HttpInitializer;
+import com.techshroom.templar.HttpRouterHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Sets up the regular templar pipeline, then puts our own handlers in front of
+ * the router so they see requests after the HTTP codec has done its work.
+ */
+public class ServerInitializer extends ChannelInitializer<Channel> {
+
+    private final Router<ByteBuf, Object> router;
+    private final RouteTemplates routes;
+
+    public ServerInitializer(Router<ByteBuf, Object> router, RouteTemplates routes) {
+        this.router = router;
+        this.routes = routes;
+    }
+
+    @Override
+    protected void initChannel(Channel ch) {
+        HttpRouterHandler routerHandler = new HttpRouterHandler(router);
+        ChannelPipeline pipeline = ch.pipeline();
+        // The channel is registered by now, so this initializes immediately
+        pipeline.addLast(new HttpInitializer(routerHandler));
+        String routerName = pipeline.context(routerHandler).name();
+        pipeline.addBefore(routerName, "ytmp3-instrumentation", new AccessInstrumentation(routes));
+        pipeline.addBefore(routerName, "ytmp3-readiness", new ReadinessGate());
+        pipeline.addBefore(routerName, "ytmp3-chunked-writer", new ChunkedWriteHandler());
+        pipeline.addBefore(routerName, "ytmp3-download", new DownloadHandler());
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Registry of every metric, rendered in the Prometheus text format.
+ *
+ * <p>
+ * Metrics are looked up by name and labels, given as alternating keys and
+ * values. Looking one up is cheap but not free, so hot paths should keep the
+ * returned instance.
+ * </p>
+ */
+public final class Metrics {
+
+    interface Metric {
+
+        void render(StringBuilder out, String name, String labels);
+
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final ConcurrentMap<String, Metric> members = new ConcurrentSkipListMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final ConcurrentMap<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, Counter::new);
+    }
+
+    /**
+     * @param scale multiplier from recorded values to the reported unit, e.g.
+     *     {@code 1e-9} to record nanoseconds and report seconds
+     */
+    public static Summary summary(String name, String help, double scale, String... labels) {
+        return (Summary) register(name, help, "summary", labels, () -> new Summary(scale));
+    }
+
+    /**
+     * Registers a value that is computed on every scrape. Registering the same
+     * gauge again replaces it.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        Family family = family(name, help, "gauge");
+        family.members.put(formatLabels(labels), (out, n, l) -> appendSample(out, n, l, value.getAsDouble()));
+    }
+
+    /**
+     * Registers a gauge with one sample per value of {@code label}, all
+     * computed by a single call to {@code values} on every scrape. Use it when
+     * the samples come out of the same expensive pass.
+     */
+    public static void gauges(String name, String help, String label,
+                              Supplier<? extends Map<String, ? extends Number>> values, String... labels) {
+        Family family = family(name, help, "gauge");
+        family.members.put(formatLabels(labels), (out, n, l) -> values.get().forEach(
+            (value, sample) -> appendSample(out, n, addLabel(l, label, value), sample.doubleValue())));
+    }
+
+    private static Metric register(String name, String help, String type, String[] labels,
+                                   Supplier<Metric> factory) {
+        return family(name, help, type).members.computeIfAbsent(formatLabels(labels), k -> factory.get());
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = FAMILIES.computeIfAbsent(name, k -> new Family(help, type));
+        checkState(family.type.equals(type), "%s is already a %s", name, family.type);
+        return family;
+    }
+
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+            Family family = entry.getValue();
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type).append('\n');
+            family.members.forEach((labels, metric) -> metric.render(out, entry.getKey(), labels));
+        }
+        return out.toString();
+    }
+
+    static void appendSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * @return {@code labels} with {@code key="value"} added
+     */
+    static String addLabel(String labels, String key, String value) {
+        String pair = key + "=\"" + escape(value) + '"';
+        if (labels.isEmpty()) {
+            return '{' + pair + '}';
+        }
+        return labels.substring(0, labels.length() - 1) + ',' + pair + '}';
+    }
+
+    private static String formatLabels(String[] labels) {
+        checkArgument(labels.length % 2 == 0, "labels must be key-value pairs");
+        String result = "";
+        for (int i = 0; i < labels.length; i += 2) {
+            result = addLabel(result, labels[i], labels[i + 1]);
+        }
+        return result;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private Metrics() {
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.octyl.ytmp3.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of values, such as latencies or sizes, reported as quantiles.
+ *
+ * <p>
+ * Recording goes to an HdrHistogram {@link Recorder}, which is wait-free for
+ * writers. Scrapes fold the interval since the last scrape into the running
+ * total.
+ * </p>
+ */
+public final class Summary implements Metrics.Metric {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final double scale;
+    private final Recorder recorder = new Recorder(3);
+    private final LongAdder sum = new LongAdder();
+    // guarded by this
+    private final Histogram total = new Histogram(3);
+    private Histogram interval;
+
+    Summary(double scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * @param value a non-negative value, in the recorded unit
+     */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        recorder.recordValue(value);
+        sum.add(value);
+    }
+
+    public void recordNanosSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return a copy of everything recorded so far, in the recorded unit
+     */
+    public synchronized Histogram snapshot() {
+        fold();
+        return total.copy();
+    }
+
+    // must hold lock
+    private void fold() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+    }
+
+    @Override
+    public synchronized void render(StringBuilder out, String name, String labels) {
+        fold();
+        for (double quantile : QUANTILES) {
+            Metrics.appendSample(out, name, Metrics.addLabel(labels, "quantile", String.valueOf(quantile)),
+                total.getValueAtPercentile(quantile * 100) * scale);
+        }
+        Metrics.appendSample(out, name + "_sum", labels, sum.sum() * scale);
+        Metrics.appendSample(out, name + "_count", labels, total.getTotalCount());
+    }
+
+}
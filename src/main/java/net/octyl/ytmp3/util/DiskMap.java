@@ -30,6 +30,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.collect.ImmutableMap;
+import net.octyl.ytmp3.metrics.Metrics;
+import net.octyl.ytmp3.metrics.Summary;
 
 import java.io.IOException;
 import java.io.Reader;
@@ -54,15 +56,23 @@ public class DiskMap<V> {
     private final Path file;
     // lock for MEMORY, not disk -- note that the disk ops use the "wrong" lock
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final String name;
+    private final Summary writeTime;
+    private final Summary writeSize;
 
     public DiskMap(ObjectMapper mapper, JavaType valueType, Map<String, V> map, Path file) {
         this.mapper = mapper;
         this.valueType = valueType;
         this.map = map;
         this.file = file;
+        this.name = file.getFileName().toString();
+        this.writeTime = Metrics.summary("ytmp3_diskmap_write_seconds", "Time taken to persist a disk map",
+            1e-9, "map", name);
+        this.writeSize = Metrics.summary("ytmp3_diskmap_write_bytes", "Size of each persisted disk map",
+            1, "map", name);
         mapper.configure(SerializationFeature.INDENT_OUTPUT, true);
+        // no need to write it straight back, the next change does that
         read();
-        write();
     }
 
     public void write() {
@@ -76,18 +86,33 @@ public class DiskMap<V> {
 
     // must hold lock
     private void doWrite() {
+        DiskMapWriteEvent event = new DiskMapWriteEvent();
+        event.begin();
+        long start = System.nanoTime();
+        long size = 0;
         try {
             var tmp = Files.createTempFile(file.getParent(), "diskmap-tmp", ".json");
             try {
                 try (Writer writer = Files.newBufferedWriter(tmp)) {
                     mapper.writeValue(writer, map);
                 }
+                size = Files.size(tmp);
+                writeSize.record(size);
                 Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
             } finally {
                 Files.deleteIfExists(tmp);
             }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            writeTime.recordNanosSince(start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.map = name;
+                event.entries = map.size();
+                event.bytesWritten = size;
+                event.commit();
+            }
         }
     }
 
@@ -0,0 +1,114 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package conversions;
+
+import net.octyl.ytmp3.conversion.ProgressiveFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProgressiveFileTest {
+
+    @TempDir
+    Path dir;
+
+    private ProgressiveFile written() throws IOException {
+        return new ProgressiveFile(Files.writeString(dir.resolve("working.mp3"), "audio"));
+    }
+
+    private static String read(FileChannel channel) throws IOException {
+        try (channel) {
+            // small enough to come back in one read
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(buffer);
+            return StandardCharsets.UTF_8.decode(buffer.flip()).toString();
+        }
+    }
+
+    private Path moveToStore(Path file) throws IOException {
+        return Files.move(file, dir.resolve("stored.mp3"));
+    }
+
+    @Test
+    void readersOpenedAfterTheMoveFollowIt() throws IOException {
+        ProgressiveFile file = written();
+        assertEquals(dir.resolve("stored.mp3"), file.moveWith(this::moveToStore));
+        assertEquals("audio", read(file.openReader()));
+    }
+
+    @Test
+    void readersOpenedBeforeTheMoveKeepReading() throws IOException {
+        ProgressiveFile file = written();
+        FileChannel reader = file.openReader();
+        file.moveWith(this::moveToStore);
+        assertEquals("audio", read(reader));
+    }
+
+    @Test
+    void readersWaitForAMoveInProgress() throws Exception {
+        ProgressiveFile file = written();
+        CountDownLatch moving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Path> move = executor.submit(() -> file.moveWith(path -> {
+                moving.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return moveToStore(path);
+            }));
+            assertTrue(moving.await(5, TimeUnit.SECONDS));
+            Future<String> reader = executor.submit(() -> read(file.openReader()));
+            Thread.sleep(100);
+            assertFalse(reader.isDone());
+            release.countDown();
+            move.get(5, TimeUnit.SECONDS);
+            assertEquals("audio", reader.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
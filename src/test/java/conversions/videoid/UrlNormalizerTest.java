@@ -0,0 +1,75 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package conversions.videoid;
+
+import net.octyl.ytmp3.conversion.videoid.UrlNormalizer;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class UrlNormalizerTest {
+
+    private static void assertNormalized(String expected, String url) {
+        assertEquals(Optional.of(URI.create(expected)), UrlNormalizer.normalize(url));
+    }
+
+    @Test
+    void schemeAndHost() {
+        assertNormalized("https://example.com/a", "example.com/a");
+        assertNormalized("https://example.com/a", "HTTP://Example.COM./a");
+        assertNormalized("https://example.com/a", "https://example.com:443/a");
+        assertNormalized("https://example.com:8080/a", "http://example.com:8080/a");
+        assertNormalized("https://example.com/", "//example.com");
+    }
+
+    @Test
+    void pathCaseIsKept() {
+        assertNormalized("https://example.com/Watch/ABC", "https://example.com/Watch/ABC");
+    }
+
+    @Test
+    void queryIsSortedWithoutTracking() {
+        assertNormalized("https://example.com/a?b=2&c=3", "https://example.com/a?c=3&utm_source=x&b=2&fbclid=y#frag");
+        assertNormalized("https://example.com/a", "https://example.com/a?gclid=abc&UTM_medium=x");
+        assertNormalized("https://m.youtube.com/watch?v=x", "https://m.youtube.com/watch?si=abc&v=x&feature=share");
+        assertNormalized("https://example.com/a?b=2&b=1", "https://example.com/a?b=2&b=1");
+    }
+
+    @Test
+    void youtubeTrackingIsOnlyRemovedOnYoutube() {
+        assertNormalized("https://example.com/a?feature=1&si=abc", "https://example.com/a?si=abc&feature=1");
+    }
+
+    @Test
+    void notUrls() {
+        assertEquals(Optional.empty(), UrlNormalizer.normalize(""));
+        assertEquals(Optional.empty(), UrlNormalizer.normalize("not a url"));
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package conversions.videoid;
+
+import com.google.common.collect.ImmutableList;
+import net.octyl.ytmp3.conversion.videoid.VideoHandler;
+import net.octyl.ytmp3.conversion.videoid.VideoHandlerIndex;
+import net.octyl.ytmp3.conversion.videoid.VideoId;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class VideoHandlerIndexTest {
+
+    private final List<String> asked = new ArrayList<>();
+
+    /**
+     * Records that it was asked, and answers with its name if it matches.
+     */
+    private VideoHandler handler(String name, Set<String> hosts, boolean matches) {
+        return new VideoHandler() {
+            @Override
+            public Set<String> getHosts() {
+                return hosts;
+            }
+
+            @Override
+            public Optional<VideoId> findId(URI video) {
+                asked.add(name);
+                return matches ? Optional.of(new VideoId(name, video.getPath())) : Optional.empty();
+            }
+        };
+    }
+
+    @Test
+    void mostSpecificHostFirst() {
+        var index = new VideoHandlerIndex(ImmutableList.of(
+            handler("parent", Set.of("example.com"), true),
+            handler("sub", Set.of("m.example.com"), false)
+        ));
+        assertEquals(Optional.of(new VideoId("parent", "/a")), index.findId("https://m.example.com/a"));
+        assertEquals(List.of("sub", "parent"), asked);
+    }
+
+    @Test
+    void anyHostHandlersAreLastInOrder() {
+        var index = new VideoHandlerIndex(ImmutableList.of(
+            handler("first-any", Set.of(), false),
+            handler("owner", Set.of("example.com"), false),
+            handler("second-any", Set.of(), true)
+        ));
+        assertEquals(Optional.of(new VideoId("second-any", "/a")), index.findId("https://example.com/a"));
+        assertEquals(List.of("owner", "first-any", "second-any"), asked);
+    }
+
+    @Test
+    void otherHostsAreNotAsked() {
+        var index = new VideoHandlerIndex(ImmutableList.of(
+            handler("owner", Set.of("example.com"), false),
+            handler("other", Set.of("example.org"), true)
+        ));
+        assertEquals(Optional.empty(), index.findId("https://example.com/a"));
+        assertEquals(List.of("owner"), asked);
+    }
+
+}
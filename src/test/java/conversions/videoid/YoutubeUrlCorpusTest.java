@@ -0,0 +1,68 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package conversions.videoid;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.Resources;
+import net.octyl.ytmp3.conversion.videoid.VideoId;
+import net.octyl.ytmp3.conversion.videoid.YoutubeVideoHandler;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs every URL in {@code youtube-urls.txt} through the handler.
+ */
+public class YoutubeUrlCorpusTest {
+
+    private static final Splitter LINE = Splitter.on(' ').omitEmptyStrings().limit(2);
+
+    private final YoutubeVideoHandler handler = new YoutubeVideoHandler();
+
+    @TestFactory
+    Stream<DynamicTest> corpus() throws IOException {
+        List<String> lines = Resources.readLines(
+            Resources.getResource(YoutubeUrlCorpusTest.class, "youtube-urls.txt"), StandardCharsets.UTF_8);
+        return lines.stream()
+            .filter(line -> !line.isBlank() && !line.startsWith("#"))
+            .map(line -> {
+                List<String> parts = LINE.splitToList(line);
+                String expected = parts.get(0).equals("-") ? null : parts.get(0);
+                String url = parts.get(1);
+                return DynamicTest.dynamicTest(url, () -> assertEquals(
+                    Optional.ofNullable(expected).map(id -> new VideoId("youtube", id)),
+                    handler.findId(url)));
+            });
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package http;
+
+import net.octyl.ytmp3.http.ByteRange;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ByteRangeTest {
+
+    private static final long LENGTH = 1000;
+
+    private static Optional<List<ByteRange>> parse(String header) {
+        return ByteRange.parse(header, LENGTH);
+    }
+
+    @Test
+    void singleRange() {
+        assertEquals(Optional.of(List.of(new ByteRange(0, 499))), parse("bytes=0-499"));
+    }
+
+    @Test
+    void openEndedRange() {
+        assertEquals(Optional.of(List.of(new ByteRange(900, 999))), parse("bytes=900-"));
+    }
+
+    @Test
+    void suffixRange() {
+        assertEquals(Optional.of(List.of(new ByteRange(800, 999))), parse("bytes=-200"));
+        assertEquals(Optional.of(List.of(new ByteRange(0, 999))), parse("bytes=-5000"));
+    }
+
+    @Test
+    void lastPositionIsClamped() {
+        assertEquals(Optional.of(List.of(new ByteRange(500, 999))), parse("bytes=500-5000"));
+    }
+
+    @Test
+    void multipleRangesAreSortedAndMerged() {
+        assertEquals(
+            Optional.of(List.of(new ByteRange(0, 199), new ByteRange(500, 599))),
+            parse("bytes=500-599, 100-199, 0-99, 150-160")
+        );
+    }
+
+    @Test
+    void unsatisfiableRanges() {
+        assertEquals(Optional.of(List.of()), parse("bytes=1000-"));
+        assertEquals(Optional.of(List.of()), parse("bytes=-0"));
+        assertEquals(Optional.of(List.of(new ByteRange(0, 9))), parse("bytes=2000-3000, 0-9"));
+    }
+
+    @Test
+    void invalidHeadersAreIgnored() {
+        assertEquals(Optional.empty(), parse("items=0-10"));
+        assertEquals(Optional.empty(), parse("bytes=10-5"));
+        assertEquals(Optional.empty(), parse("bytes=abc"));
+        assertEquals(Optional.empty(), parse("bytes=1-2-3"));
+        assertEquals(Optional.empty(), parse("bytes="));
+    }
+
+}
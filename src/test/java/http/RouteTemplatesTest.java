@@ -0,0 +1,74 @@
+/*
+ * This file is part of YoutubeMp3Server, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package http;
+
+import net.octyl.ytmp3.http.RouteTemplates;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RouteTemplatesTest {
+
+    private static final RouteTemplates ROUTES = RouteTemplates.of(List.of(
+        "/",
+        "/mp3ify",
+        "/mp3ify/changes",
+        "/mp3ify/streams/{*}",
+        "/mp3ify/{*}",
+        "/mp3ify/{*}/download",
+        "/assets/{**}"
+    ));
+
+    @Test
+    void literalRoutes() {
+        assertEquals("/", ROUTES.normalize("/"));
+        assertEquals("/mp3ify", ROUTES.normalize("/mp3ify"));
+        assertEquals("/mp3ify", ROUTES.normalize("/mp3ify?from=10"));
+    }
+
+    @Test
+    void literalSegmentsWinOverWildcards() {
+        assertEquals("/mp3ify/changes", ROUTES.normalize("/mp3ify/changes?since=3"));
+        assertEquals("/mp3ify/{*}", ROUTES.normalize("/mp3ify/video-12"));
+        assertEquals("/mp3ify/streams/{*}", ROUTES.normalize("/mp3ify/streams/abc"));
+    }
+
+    @Test
+    void wildcardSegments() {
+        assertEquals("/mp3ify/{*}/download", ROUTES.normalize("/mp3ify/video-12/download?progressive"));
+        assertEquals("/assets/{**}", ROUTES.normalize("/assets/css/main.css"));
+    }
+
+    @Test
+    void unknownPaths() {
+        assertEquals(RouteTemplates.OTHER, ROUTES.normalize("/mp3ify/video-12/download/extra"));
+        assertEquals(RouteTemplates.OTHER, ROUTES.normalize("/assets"));
+        assertEquals(RouteTemplates.OTHER, ROUTES.normalize("/nope"));
+    }
+
+}
@@ -6,7 +6,7 @@ let $rotateArrow;
 let $progressBar;
 let $history;
 
-let activeSse;
+let activeId;
 
 function initializeTargets() {
     $statusText = $("#statusText");
@@ -25,11 +25,100 @@ function emptyData() {
     $downloadBox.text("");
 }
 
-function tearDownSse() {
-    if (activeSse !== undefined) {
-        activeSse.close();
-        activeSse = undefined;
+/**
+ * One multiplexed event stream shared by every conversion we watch.
+ */
+const streams = {
+    source: undefined,
+    session: undefined,
+    // conversion ID -> last event ID seen, or null if none yet
+    positions: {},
+    // conversion ID -> {event name -> handler}
+    handlers: {},
+
+    watch(id, handlers) {
+        this.handlers[id] = handlers;
+        // from the start even if already watched, as the view was emptied
+        this.positions[id] = null;
+        if (this.source !== undefined && this.session !== undefined) {
+            this.post({'watch': [id]}).fail(() => this.reconnect());
+        } else {
+            this.reconnect();
+        }
+    },
+
+    unwatch(id) {
+        delete this.handlers[id];
+        delete this.positions[id];
+        if (this.source !== undefined && this.session !== undefined) {
+            // if the session is gone, so are its watches
+            this.post({'unwatch': [id]});
+        }
+    },
+
+    post(body) {
+        return $['ajax']({
+            url: `/mp3ify/streams/${this.session}`,
+            method: 'POST',
+            data: JSON.stringify(body),
+            contentType: 'application/json; charset=utf-8',
+        });
+    },
+
+    reconnect() {
+        if (this.source !== undefined) {
+            this.source.close();
+        }
+        this.session = undefined;
+        const watch = Object.keys(this.positions)
+            .map(id => this.positions[id] === null ? id : `${id}:${this.positions[id]}`)
+            .map(spec => `watch=${encodeURIComponent(spec)}`)
+            .join('&');
+        const source = new EventSource(`/mp3ify/streams?${watch}`);
+        source.addEventListener("session", e => {
+            this.session = e.data;
+        });
+        ["status", "outputLine", "carriageReturn", "progressive"].forEach(name => {
+            source.addEventListener(name, e => this.dispatch(name, e));
+        });
+        source.addEventListener("rejected", e => {
+            // over the server's limit, don't ask again on reconnect
+            delete this.positions[JSON.parse(e.data).conversion];
+        });
+        source.onerror = () => {
+            // the browser would only resume one conversion, so resume them all ourselves
+            if (this.source === source) {
+                this.source = undefined;
+                source.close();
+                setTimeout(() => this.reconnect(), 1000);
+            }
+        };
+        this.source = source;
+    },
+
+    dispatch(name, e) {
+        const payload = JSON.parse(e.data);
+        const id = payload.conversion;
+        if (!(id in this.positions)) {
+            // sent before the server saw our unwatch
+            return;
+        }
+        if (e.lastEventId) {
+            this.positions[id] = e.lastEventId.substring(id.length + 1);
+        }
+        const handlers = this.handlers[id];
+        if (handlers !== undefined && handlers[name] !== undefined) {
+            handlers[name](payload.data);
+        }
+    },
+};
+
+function tearDownSse(nextId) {
+    // watching the same ID again replaces the server's watch, unwatching it would race that
+    if (activeId !== undefined && activeId !== nextId) {
+        streams.unwatch(activeId);
     }
+    activeId = undefined;
 }
 
 const Status = {
@@ -40,37 +129,40 @@ const Status = {
 };
 
 function setupSse(id) {
-    tearDownSse();
-    const source = new EventSource(`/mp3ify/${id}/stream`);
-    source.addEventListener("status", e => {
-        const status = e.data;
-        if (status === Status.FAILED) {
-            $statusText.text("Failed!");
-            setProgressBar("danger", 100);
-            $.get(`/mp3ify/${id}/status`, data => $errorDisplay.text(data.reason));
-        } else if (status === Status.SUCCESSFUL) {
-            $statusText.text("Conversion complete!");
-            onSuccess(id);
-        } else if (status === Status.CONVERTING) {
-            $statusText.text("Converting...");
-        }
-    });
+    tearDownSse(id);
     let doCr = false;
-    source.addEventListener("outputLine", e => {
-        if (doCr) {
-            $progressBox.text((i, oldText) => {
-                // from 1 before end, as end is a newline as well
-                const lastNewline = oldText.lastIndexOf('\n', oldText.length - 2);
-                return oldText.substring(0, lastNewline + 1);
-            });
-            doCr = false;
-        }
-        $progressBox.append(e.data + '\n');
+    streams.watch(id, {
+        status: status => {
+            if (status === Status.FAILED) {
+                $statusText.text("Failed!");
+                setProgressBar("danger", 100);
+                $.get(`/mp3ify/${id}/status`, data => $errorDisplay.text(data.reason));
+            } else if (status === Status.SUCCESSFUL) {
+                $statusText.text("Conversion complete!");
+                onSuccess(id);
+            } else if (status === Status.CONVERTING) {
+                $statusText.text("Converting...");
+            }
+        },
+        outputLine: line => {
+            if (doCr) {
+                $progressBox.text((i, oldText) => {
+                    // from 1 before end, as end is a newline as well
+                    const lastNewline = oldText.lastIndexOf('\n', oldText.length - 2);
+                    return oldText.substring(0, lastNewline + 1);
+                });
+                doCr = false;
+            }
+            $progressBox.append(line + '\n');
+        },
+        carriageReturn: () => {
+            doCr = true;
+        },
+        progressive: () => {
+            $downloadBox['html'](`<a href="/mp3ify/${id}/download?progressive">Download while converting!</a>`);
+        },
     });
-    source.addEventListener("carriageReturn", () => {
-        doCr = true;
-    });
-    activeSse = source;
+    activeId = id;
 }
 
 function onSuccess(id) {
@@ -145,20 +237,53 @@ function confirmDelete(id, name) {
     })
 }
 
+function historyItem(c) {
+    return `
+        <li class="list-group-item p-2" id="item-${c.id}">
+            <a href="/mp3ify/${c.id}/download">Download ${c.name}!</a>
+            <button type="button" class="close mx-3" aria-label="Delete"
+                onclick="confirmDelete('${c.id}', '${c.name}')">
+                <span aria-hidden="true">&times;</span>
+            </button>
+        </li>
+        `.trim();
+}
+
+// sequence number of the last library change applied to $history
+let librarySequence;
+let libraryFeed;
+
 function getHistory() {
-    $.get('/mp3ify').then(convs => {
-        $history['html'](convs
-            .map(c => `
-                <li class="list-group-item p-2" id="item-${c.id}">
-                    <a href="/mp3ify/${c.id}/download">Download ${c.name}!</a>
-                    <button type="button" class="close mx-3" aria-label="Delete"
-                        onclick="confirmDelete('${c.id}', '${c.name}')">
-                        <span aria-hidden="true">&times;</span>
-                    </button>
-                </li>
-                `.trim())
-            .join('\n'));
+    $.get('/mp3ify').then((convs, status, xhr) => {
+        librarySequence = Number(xhr.getResponseHeader('library-sequence'));
+        $history['html'](convs.map(historyItem).join('\n'));
+        if (libraryFeed === undefined) {
+            followHistory();
+        }
+    });
+}
+
+function followHistory() {
+    libraryFeed = new EventSource(`/mp3ify/changes?since=${librarySequence}`);
+    const isNew = e => Number(e.lastEventId) > librarySequence;
+    libraryFeed.addEventListener("added", e => {
+        if (!isNew(e)) {
+            return;
+        }
+        librarySequence = Number(e.lastEventId);
+        const c = JSON.parse(e.data);
+        if ($(`#item-${c.id}`).length === 0) {
+            $history.prepend(historyItem(c));
+        }
+    });
+    libraryFeed.addEventListener("removed", e => {
+        if (!isNew(e)) {
+            return;
+        }
+        librarySequence = Number(e.lastEventId);
+        $(`#item-${JSON.parse(e.data).id}`).remove();
     });
+    libraryFeed.addEventListener("reset", () => getHistory());
 }
 
 $(() => {